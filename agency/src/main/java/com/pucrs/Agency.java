@@ -1,24 +1,31 @@
 package com.pucrs;
 
 import java.util.Random;
+
+import com.pucrs.client.CircuitOpenException;
+import com.pucrs.client.ClientRuntime;
+import com.pucrs.client.NoResponseException;
+import com.pucrs.client.RemoteCall;
+import com.pucrs.client.RetryPolicy;
+import com.pucrs.client.ShardRouter;
 import com.pucrs.interfaces.IAtmRemote;
 import com.pucrs.interfaces.IBranchRemote;
+import com.pucrs.interfaces.OperationResult;
 
 import java.rmi.NotBoundException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 public class Agency {
     private static Scanner scanner = new Scanner(System.in);
 
+    private static final ClientRuntime runtime = ClientRuntime.shared();
+    private static final RetryPolicy retryPolicy = RetryPolicy.shared();
+
     private static IAtmRemote atmRemote;
     private static IBranchRemote accountRemote;
 
-    private static final int MAX_ATTEMPTS = 5;
-    private static final int REQUEST_ATTEMPT_SLEEP = 1500;
     private static final int REQUEST_TIMEOUT = 3000;
 
     public static void main(String[] args) throws InterruptedException {
@@ -29,10 +36,9 @@ public class Agency {
 
                 System.out.println("Connecting to server...");
 
-                Registry registry = LocateRegistry.getRegistry("localhost", 8080);
-
-                atmRemote = (IAtmRemote) registry.lookup("atm-server");
-                accountRemote = (IBranchRemote) registry.lookup("branch-server");
+                ShardRouter router = ShardRouter.connect(runtime, "localhost", 8080);
+                atmRemote = router;
+                accountRemote = router;
 
                 // throw new Exception("Test exception");
 
@@ -40,6 +46,7 @@ public class Agency {
                     showMainMenu();
 
             } catch (NotBoundException e) {
+                runtime.invalidate("localhost", 8080);
                 while (counter > 0) {
                     clearConsole();
                     System.out.println("Error connecting to server: " + e.getMessage());
@@ -48,6 +55,8 @@ public class Agency {
                     counter--;
                 }
             } catch (Exception e) {
+                // The server may have restarted; look the stubs up again.
+                runtime.invalidate("localhost", 8080);
                 clearConsole();
                 System.out.println("An error occurred: " + e.getMessage());
                 System.out.println("Returning to main menu...");
@@ -98,36 +107,9 @@ public class Agency {
         System.out.print("Enter Account ID: ");
         long accountId = scanner.nextLong();
 
-        boolean success = false;
-        int attempts = 0;
-        while (attempts < MAX_ATTEMPTS) {
-
-            clearConsole();
-
-            try {
-                System.out.println("Sending request to server...");
-                Map<String, String> res = executeWithTimeout(() -> accountRemote.deleteAccount(requestId, accountId),
-                        REQUEST_TIMEOUT);
-
-                if (res == null) {
-                    clearConsole();
-                    throw new Exception("No response from server.");
-                }
-
-                success = true;
-                handleResponse(res);
-                break;
-
-            } catch (Exception e) {
-                System.out.println("An error occurred: " + e.getMessage());
-                System.out.println("Retrying... (" + (attempts + 1) + "/" + MAX_ATTEMPTS + ")");
-                Thread.sleep(REQUEST_ATTEMPT_SLEEP);
-                attempts++;
-            }
-        }
-
-        if (!success) {
-            System.out.println("No response from server.");
+        OperationResult res = send(() -> accountRemote.deleteAccount(requestId, accountId));
+        if (res != null) {
+            handleResponse(res);
         }
 
         if (askToContinue()) {
@@ -147,36 +129,9 @@ public class Agency {
         System.out.print("Generating Account ID...");
         long accountId = generateAccountId();
 
-        boolean success = false;
-        int attempts = 0;
-        while (attempts < MAX_ATTEMPTS) {
-
-            clearConsole();
-
-            try {
-                System.out.println("Sending request to server...");
-                Map<String, String> res = executeWithTimeout(() -> accountRemote.createAccount(requestId, accountId),
-                        REQUEST_TIMEOUT);
-
-                if (res == null) {
-                    clearConsole();
-                    throw new Exception("No response from server.");
-                }
-
-                success = true;
-                handleResponse(res);
-                break;
-
-            } catch (Exception e) {
-                System.out.println("An error occurred: " + e.getMessage());
-                System.out.println("Retrying... (" + (attempts + 1) + "/" + MAX_ATTEMPTS + ")");
-                Thread.sleep(REQUEST_ATTEMPT_SLEEP);
-                attempts++;
-            }
-        }
-
-        if (!success) {
-            System.out.println("No response from server.");
+        OperationResult res = send(() -> accountRemote.createAccount(requestId, accountId));
+        if (res != null) {
+            handleResponse(res);
         }
 
         if (askToContinue()) {
@@ -195,36 +150,9 @@ public class Agency {
         System.out.print("Enter Amount to Deposit: ");
         double amount = getPositiveDouble();
 
-        boolean success = false;
-        int attempts = 0;
-        while (attempts < MAX_ATTEMPTS) {
-
-            clearConsole();
-
-            try {
-                System.out.println("Sending request to server...");
-                Map<String, String> res = executeWithTimeout(() -> atmRemote.deposit(requestId, accountId, amount),
-                        REQUEST_TIMEOUT);
-
-                if (res == null) {
-                    clearConsole();
-                    throw new Exception("No response from server.");
-                }
-
-                success = true;
-                handleResponse(res);
-                break;
-
-            } catch (Exception e) {
-                System.out.println("An error occurred: " + e.getMessage());
-                System.out.println("Retrying... (" + (attempts + 1) + "/" + MAX_ATTEMPTS + ")");
-                Thread.sleep(REQUEST_ATTEMPT_SLEEP);
-                attempts++;
-            }
-        }
-
-        if (!success) {
-            System.out.println("No response from server.");
+        OperationResult res = send(() -> atmRemote.deposit(requestId, accountId, amount));
+        if (res != null) {
+            handleResponse(res);
         }
 
         if (askToContinue()) {
@@ -244,36 +172,9 @@ public class Agency {
         System.out.print("Enter Amount to Withdraw: ");
         double amount = getPositiveDouble();
 
-        boolean success = false;
-        int attempts = 0;
-        while (attempts < MAX_ATTEMPTS) {
-
-            clearConsole();
-
-            try {
-                System.out.println("Sending request to server...");
-                Map<String, String> res = executeWithTimeout(() -> atmRemote.withdraw(requestId, accountId, amount),
-                        REQUEST_TIMEOUT);
-
-                if (res == null) {
-                    clearConsole();
-                    throw new Exception("No response from server.");
-                }
-
-                success = true;
-                handleResponse(res);
-                break;
-
-            } catch (Exception e) {
-                System.out.println("An error occurred: " + e.getMessage());
-                System.out.println("Retrying... (" + (attempts + 1) + "/" + MAX_ATTEMPTS + ")");
-                Thread.sleep(REQUEST_ATTEMPT_SLEEP);
-                attempts++;
-            }
-        }
-
-        if (!success) {
-            System.out.println("No response from server.");
+        OperationResult res = send(() -> atmRemote.withdraw(requestId, accountId, amount));
+        if (res != null) {
+            handleResponse(res);
         }
 
         if (askToContinue()) {
@@ -289,36 +190,9 @@ public class Agency {
         System.out.print("Enter Account ID: ");
         long accountId = scanner.nextLong();
 
-        boolean success = false;
-        int attempts = 0;
-        while (attempts < MAX_ATTEMPTS) {
-
-            clearConsole();
-
-            try {
-                System.out.println("Sending request to server...");
-                Map<String, String> res = executeWithTimeout(() -> atmRemote.getBalance(requestId, accountId),
-                        REQUEST_TIMEOUT);
-
-                if (res == null) {
-                    clearConsole();
-                    throw new Exception("No response from server.");
-                }
-
-                success = true;
-                handleResponse(res);
-                break;
-
-            } catch (Exception e) {
-                System.out.println("An error occurred: " + e.getMessage());
-                System.out.println("Retrying... (" + (attempts + 1) + "/" + MAX_ATTEMPTS + ")");
-                Thread.sleep(REQUEST_ATTEMPT_SLEEP);
-                attempts++;
-            }
-        }
-
-        if (!success) {
-            System.out.println("No response from server.");
+        OperationResult res = send(() -> atmRemote.getBalance(requestId, accountId));
+        if (res != null) {
+            handleResponse(res);
         }
 
         if (askToContinue()) {
@@ -327,19 +201,33 @@ public class Agency {
 
     }
 
-    private static void handleResponse(Map<String, String> map) {
-        for (Map.Entry<String, String> entry : map.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-
-            if (key.toLowerCase().equals("message")) {
-                System.out.println(value);
-                return;
-            }
-
+    /**
+     * Sends one request, retrying it with the same request id as far as the
+     * shared retry policy allows. Returns null, after telling the user, when
+     * no reply arrived.
+     */
+    private static OperationResult send(RemoteCall<OperationResult> call) throws InterruptedException {
+        clearConsole();
+        System.out.println("Sending request to server...");
+        try {
+            return retryPolicy.call(() -> executeWithTimeout(call, REQUEST_TIMEOUT), (attempt, reason, delay) -> {
+                System.out.println("An error occurred: " + reason);
+                System.out.println("Retrying in " + delay + " ms... (" + attempt + "/" + retryPolicy.maxAttempts()
+                        + ")");
+            });
+        } catch (TimeoutException | NoResponseException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+            System.out.println("No response from server.");
+        } catch (ExecutionException e) {
+            System.out.println("An error occurred: " + e.getCause().getMessage());
+        } catch (CircuitOpenException e) {
+            System.out.println(e.getMessage());
         }
+        return null;
+    }
 
-        System.out.println();
+    private static void handleResponse(OperationResult result) {
+        System.out.println(result.getMessage());
     }
 
     private static boolean askToContinue() {
@@ -385,17 +273,13 @@ public class Agency {
         return amount;
     }
 
-    private static <T> T executeWithTimeout(Callable<T> callable, int timeout) throws Exception {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<T> future = executor.submit(callable);
+    private static <T> T executeWithTimeout(RemoteCall<T> call, int timeout)
+            throws TimeoutException, ExecutionException, InterruptedException {
         try {
-            return future.get(timeout, TimeUnit.MILLISECONDS);
+            return runtime.await(call, timeout);
         } catch (TimeoutException e) {
-            future.cancel(true);
             clearConsole();
-            throw new Exception("Operation timed out");
-        } finally {
-            executor.shutdown();
+            throw new TimeoutException("Operation timed out");
         }
     }
 
@@ -1,29 +1,29 @@
 package com.pucrs;
 
-import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import com.pucrs.client.CircuitOpenException;
+import com.pucrs.client.ClientRuntime;
+import com.pucrs.client.NoResponseException;
+import com.pucrs.client.RemoteCall;
+import com.pucrs.client.RetryPolicy;
+import com.pucrs.client.ShardRouter;
 import com.pucrs.interfaces.IAtmRemote;
+import com.pucrs.interfaces.OperationResult;
 
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 
 public class Atm {
     private static Scanner scanner = new Scanner(System.in);
 
+    private static final ClientRuntime runtime = ClientRuntime.shared();
+    private static final RetryPolicy retryPolicy = RetryPolicy.shared();
+
     private static IAtmRemote bank;
 
-    private static final int MAX_ATTEMPTS = 5;
-    private static final int REQUEST_ATTEMPT_SLEEP = 1500;
     private static final int REQUEST_TIMEOUT = 6000;
 
     public static void main(String[] args) throws InterruptedException {
@@ -34,9 +34,7 @@ public class Atm {
 
                 System.out.println("Connecting to server...");
 
-                Registry registry = LocateRegistry.getRegistry("localhost", 8080);
-
-                bank = (IAtmRemote) registry.lookup("atm-server");
+                bank = ShardRouter.connect(runtime, "localhost", 8080);
 
                 // throw new Exception("Test exception");
 
@@ -44,6 +42,8 @@ public class Atm {
                     showMainMenu();
 
             } catch (NotBoundException | RemoteException | ExecutionException e) {
+                // The server may have restarted; look the stub up again.
+                runtime.invalidate("localhost", 8080);
                 while (counter > 0) {
                     clearConsole();
                     if (e.getCause() != null) {
@@ -71,8 +71,9 @@ public class Atm {
         System.out.println("1. Deposit");
         System.out.println("2. Withdraw");
         System.out.println("3. Get Balance");
+        System.out.println("4. Transfer");
 
-        int choice = getUserChoice(1, 3);
+        int choice = getUserChoice(1, 4);
 
         switch (choice) {
             case 1:
@@ -84,6 +85,9 @@ public class Atm {
             case 3:
                 handleGetBalance();
                 break;
+            case 4:
+                handleTransfer();
+                break;
         }
     }
 
@@ -98,36 +102,9 @@ public class Atm {
         System.out.print("Enter Amount to Deposit: ");
         double amount = getPositiveDouble();
 
-        boolean success = false;
-        int attempts = 0;
-        while (attempts < MAX_ATTEMPTS) {
-
-            clearConsole();
-
-            try {
-                System.out.println("Sending request to server...");
-                Map<String, String> res = executeWithTimeout(() -> bank.deposit(requestId, accountId, amount),
-                        REQUEST_TIMEOUT);
-
-                if (res == null) {
-                    clearConsole();
-                    throw new NullPointerException("No response from server.");
-                }
-
-                success = true;
-                handleResponse(res);
-                break;
-
-            } catch (NullPointerException | TimeoutException e) {
-                System.out.println("An error occurred: " + e.getMessage());
-                System.out.println("Retrying... (" + (attempts + 1) + "/" + MAX_ATTEMPTS + ")");
-                Thread.sleep(REQUEST_ATTEMPT_SLEEP);
-                attempts++;
-            }
-        }
-
-        if (!success) {
-            System.out.println("No response from server.");
+        OperationResult res = send(() -> bank.deposit(requestId, accountId, amount));
+        if (res != null) {
+            handleResponse(res);
         }
 
         if (askToContinue()) {
@@ -147,36 +124,9 @@ public class Atm {
         System.out.print("Enter Amount to Withdraw: ");
         double amount = getPositiveDouble();
 
-        boolean success = false;
-        int attempts = 0;
-        while (attempts < MAX_ATTEMPTS) {
-
-            clearConsole();
-
-            try {
-                System.out.println("Sending request to server...");
-                Map<String, String> res = executeWithTimeout(() -> bank.withdraw(requestId, accountId, amount),
-                        REQUEST_TIMEOUT);
-
-                if (res == null) {
-                    clearConsole();
-                    throw new NullPointerException("No response from server.");
-                }
-
-                success = true;
-                handleResponse(res);
-                break;
-
-            } catch (NullPointerException | TimeoutException e) {
-                System.out.println("An error occurred: " + e.getMessage());
-                System.out.println("Retrying... (" + (attempts + 1) + "/" + MAX_ATTEMPTS + ")");
-                Thread.sleep(REQUEST_ATTEMPT_SLEEP);
-                attempts++;
-            }
-        }
-
-        if (!success) {
-            System.out.println("No response from server.");
+        OperationResult res = send(() -> bank.withdraw(requestId, accountId, amount));
+        if (res != null) {
+            handleResponse(res);
         }
 
         if (askToContinue()) {
@@ -184,7 +134,7 @@ public class Atm {
         }
     }
 
-    private static void handleGetBalance() throws InterruptedException, ExecutionException {
+    private static void handleTransfer() throws InterruptedException, ExecutionException {
         clearConsole();
 
         long requestId = java.util.UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
@@ -192,36 +142,33 @@ public class Atm {
         System.out.print("Enter Account ID: ");
         long accountId = scanner.nextLong();
 
-        boolean success = false;
-        int attempts = 0;
-        while (attempts < MAX_ATTEMPTS) {
+        System.out.print("Enter Destination Account ID: ");
+        long toAccountId = scanner.nextLong();
 
-            clearConsole();
+        System.out.print("Enter Amount to Transfer: ");
+        double amount = getPositiveDouble();
 
-            try {
-                System.out.println("Sending request to server...");
-                Map<String, String> res = executeWithTimeout(() -> bank.getBalance(requestId, accountId),
-                        REQUEST_TIMEOUT);
+        OperationResult res = send(() -> bank.transfer(requestId, accountId, toAccountId, amount));
+        if (res != null) {
+            handleResponse(res);
+        }
 
-                if (res == null) {
-                    clearConsole();
-                    throw new NullPointerException("No response from server.");
-                }
+        if (askToContinue()) {
+            handleTransfer();
+        }
+    }
 
-                success = true;
-                handleResponse(res);
-                break;
+    private static void handleGetBalance() throws InterruptedException, ExecutionException {
+        clearConsole();
 
-            } catch (NullPointerException | TimeoutException e) {
-                System.out.println("An error occurred: " + e.getMessage());
-                System.out.println("Retrying... (" + (attempts + 1) + "/" + MAX_ATTEMPTS + ")");
-                Thread.sleep(REQUEST_ATTEMPT_SLEEP);
-                attempts++;
-            }
-        }
+        long requestId = java.util.UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
 
-        if (!success) {
-            System.out.println("No response from server.");
+        System.out.print("Enter Account ID: ");
+        long accountId = scanner.nextLong();
+
+        OperationResult res = send(() -> bank.getBalance(requestId, accountId));
+        if (res != null) {
+            handleResponse(res);
         }
 
         if (askToContinue()) {
@@ -230,19 +177,32 @@ public class Atm {
 
     }
 
-    private static void handleResponse(Map<String, String> map) {
-        for (Map.Entry<String, String> entry : map.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-
-            if (key.toLowerCase().equals("message")) {
-                System.out.println(value);
-                return;
-            }
-
+    /**
+     * Sends one request, retrying it with the same request id as far as the
+     * shared retry policy allows. Returns null, after telling the user, when
+     * no reply arrived.
+     */
+    private static OperationResult send(RemoteCall<OperationResult> call)
+            throws InterruptedException, ExecutionException {
+        clearConsole();
+        System.out.println("Sending request to server...");
+        try {
+            return retryPolicy.call(() -> executeWithTimeout(call, REQUEST_TIMEOUT), (attempt, reason, delay) -> {
+                System.out.println("An error occurred: " + reason);
+                System.out.println("Retrying in " + delay + " ms... (" + attempt + "/" + retryPolicy.maxAttempts()
+                        + ")");
+            });
+        } catch (TimeoutException | NoResponseException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+            System.out.println("No response from server.");
+        } catch (CircuitOpenException e) {
+            System.out.println(e.getMessage());
         }
+        return null;
+    }
 
-        System.out.println();
+    private static void handleResponse(OperationResult result) {
+        System.out.println(result.getMessage());
     }
 
     private static boolean askToContinue() {
@@ -288,18 +248,13 @@ public class Atm {
         return amount;
     }
 
-    private static <T> T executeWithTimeout(Callable<T> callable, int timeout)
+    private static <T> T executeWithTimeout(RemoteCall<T> call, int timeout)
             throws TimeoutException, ExecutionException, InterruptedException {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<T> future = executor.submit(callable);
         try {
-            return future.get(timeout, TimeUnit.MILLISECONDS);
+            return runtime.await(call, timeout);
         } catch (TimeoutException e) {
-            future.cancel(true);
             clearConsole();
             throw new TimeoutException("Operation timed out");
-        } finally {
-            executor.shutdown();
         }
     }
 
@@ -0,0 +1,27 @@
+package com.pucrs;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks once per thread count listed in
+ * {@code -Dbench.threads} (default {@code 1,4,16}). Any arguments are passed
+ * to JMH as usual, e.g. a benchmark name filter or {@code -p skew=hot}.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        for (String count : System.getProperty("bench.threads", "1,4,16").split(",")) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(Integer.parseInt(count.trim()));
+            if (commandLine.getIncludes().isEmpty()) {
+                options.include(ServerBenchmark.class.getSimpleName());
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
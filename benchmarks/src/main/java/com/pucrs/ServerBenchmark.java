@@ -0,0 +1,151 @@
+package com.pucrs;
+
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pucrs.interfaces.OperationResult;
+
+/**
+ * In-process cost of the server's operations, called directly without RMI.
+ * Fault injection and simulated delays are turned off, so what is measured is
+ * dedupe, locking, the account store and the journal.
+ *
+ * <p>The server keeps its configuration in static fields read once per JVM,
+ * so every parameter combination must run in its own fork; do not run with
+ * {@code -f 0}. {@code skew=hot} sends every request to a single account;
+ * compare {@code combining=true} against it with several threads
+ * ({@code -t}), and {@code engine=ringbuffer} against the default locks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+
+    private static final int REPLAY_IDS = 1024;
+    private static final long FIRST_NEW_ACCOUNT = 1L << 40;
+
+    @Param({ "uniform", "hot" })
+    public String skew;
+
+    @Param({ "10000" })
+    public int accounts;
+
+    @Param({ "false" })
+    public boolean fsync;
+
+    @Param({ "caller" })
+    public String executor;
+
+    @Param({ "false" })
+    public boolean combining;
+
+    @Param({ "locks" })
+    public String engine;
+
+    private Server server;
+    private boolean hot;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        System.setProperty("server.errorRate", "0");
+        System.setProperty("server.maxSleep", "0");
+        System.setProperty("server.depositSleep", "0");
+        System.setProperty("server.log.file", "");
+        System.setProperty("server.log.console", "WARN");
+        System.setProperty("server.journal.fsync", String.valueOf(fsync));
+        System.setProperty("server.executor", executor);
+        System.setProperty("server.combining", String.valueOf(combining));
+        System.setProperty("server.engine", engine);
+        System.setProperty("server.dataDir", Files.createTempDirectory("server-bench").toString());
+
+        Server.recover();
+        server = new Server();
+        hot = skew.equals("hot");
+
+        for (long id = 0; id < accounts; id++) {
+            server.createAccount(newRequestId(), id);
+            server.deposit(newRequestId(), id, 1e9);
+        }
+        for (long requestId = 1; requestId <= REPLAY_IDS; requestId++) {
+            server.getBalance(requestId, requestId % accounts);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        // The exported object keeps RMI's non-daemon threads, and the fork, alive.
+        UnicastRemoteObject.unexportObject(server, true);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        long nextAccount;
+
+        @Setup(Level.Trial)
+        public void start(ServerBenchmark benchmark) {
+            nextAccount = FIRST_NEW_ACCOUNT * (benchmark.threads.incrementAndGet());
+        }
+    }
+
+    @Benchmark
+    public OperationResult deposit() throws RemoteException {
+        return server.deposit(newRequestId(), account(), 1.0);
+    }
+
+    @Benchmark
+    public OperationResult withdraw() throws RemoteException {
+        return server.withdraw(newRequestId(), account(), 0.01);
+    }
+
+    @Benchmark
+    public OperationResult getBalance() throws RemoteException {
+        return server.getBalance(newRequestId(), account());
+    }
+
+    @Benchmark
+    public OperationResult createAccount(ThreadState state) throws RemoteException {
+        return server.createAccount(newRequestId(), state.nextAccount++);
+    }
+
+    /**
+     * A retry of a request the server already answered, served from the
+     * request log.
+     */
+    @Benchmark
+    public OperationResult replay() throws RemoteException {
+        long requestId = 1 + ThreadLocalRandom.current().nextInt(REPLAY_IDS);
+        return server.getBalance(requestId, requestId % accounts);
+    }
+
+    private long account() {
+        return hot ? 0 : ThreadLocalRandom.current().nextInt(accounts);
+    }
+
+    private static long newRequestId() {
+        // Above the replay ids, so random requests never hit the request log.
+        return (ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) | (1L << 62);
+    }
+}
@@ -0,0 +1,226 @@
+package com.pucrs.client;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.pucrs.interfaces.BatchOperation;
+import com.pucrs.interfaces.IAtmRemote;
+import com.pucrs.interfaces.IBranchRemote;
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.OperationType;
+import com.pucrs.interfaces.RetryDefaults;
+
+/**
+ * Non-blocking client for the bank server. Every operation returns at once
+ * with a future of the typed reply; remote calls run on the pool of a
+ * {@link ClientRuntime}, timeouts are enforced with
+ * {@link CompletableFuture#orTimeout} and retries, decided by a
+ * {@link RetryPolicy}, are scheduled on the runtime's timer, so no thread
+ * waits for a reply or sleeps between attempts.
+ *
+ * <p>A retried operation reuses its request id, so the server answers it from
+ * its request log instead of applying it twice.
+ *
+ * <p>Java RMI calls are blocking, so over RMI an operation still holds a pool
+ * thread for the duration of each remote call, including calls that already
+ * timed out on the client side. The pool size bounds the number of calls on
+ * the wire; everything beyond it waits in the pool's queue. Over the binary
+ * transport ({@link NioBankClient}) operations are sent directly and hold no
+ * thread while in flight.
+ *
+ * <p>{@link #connect(String)} picks the transport from {@code -Dbank.transport}
+ * ({@code rmi} or {@code nio}) and its port from {@code -Dbank.port}. Only
+ * RMI goes through a {@link ShardRouter}: the shard map names registry ports,
+ * so {@code nio} talks to the one server it connected to, with no shard
+ * routing and no replica reads, and accounts owned by another shard come back
+ * {@code WRONG_SHARD}.
+ */
+public class AsyncBankClient implements AutoCloseable {
+
+    public static final int DEFAULT_TIMEOUT = RetryDefaults.TIMEOUT;
+    public static final int DEFAULT_RMI_PORT = 8080;
+    public static final int DEFAULT_NIO_PORT = 8081;
+
+    private final IAtmRemote atm;
+    private final IBranchRemote branch;
+    private final NioBankClient nio;
+    private final ClientRuntime runtime;
+    private final long timeout;
+    private final RetryPolicy retryPolicy;
+
+    public AsyncBankClient(IAtmRemote atm, IBranchRemote branch, ClientRuntime runtime, long timeout,
+            RetryPolicy retryPolicy) {
+        this(atm, branch, null, runtime, timeout, retryPolicy);
+    }
+
+    /**
+     * Sends operations over the binary transport. The runtime's call pool only
+     * runs calls passed to {@link #submit(RemoteCall)}.
+     */
+    public AsyncBankClient(NioBankClient nio, ClientRuntime runtime, long timeout, RetryPolicy retryPolicy) {
+        this(nio, nio, nio, runtime, timeout, retryPolicy);
+    }
+
+    private AsyncBankClient(IAtmRemote atm, IBranchRemote branch, NioBankClient nio, ClientRuntime runtime,
+            long timeout, RetryPolicy retryPolicy) {
+        this.atm = atm;
+        this.branch = branch;
+        this.nio = nio;
+        this.timeout = timeout;
+        this.retryPolicy = retryPolicy;
+        this.runtime = runtime;
+    }
+
+    /**
+     * Connects through a {@link ShardRouter} bootstrapped from the registry at
+     * {@code host:port}, using the shared runtime and the same defaults as the
+     * interactive clients.
+     */
+    public static AsyncBankClient connect(String host, int port) throws RemoteException, NotBoundException {
+        ClientRuntime runtime = ClientRuntime.shared();
+        ShardRouter router = ShardRouter.connect(runtime, host, port);
+        return new AsyncBankClient(router, router, runtime, DEFAULT_TIMEOUT, RetryPolicy.shared());
+    }
+
+    /**
+     * Connects to {@code host} with the transport named by
+     * {@code -Dbank.transport}, {@code rmi} by default.
+     */
+    public static AsyncBankClient connect(String host) throws IOException, NotBoundException {
+        String transport = System.getProperty("bank.transport", "rmi");
+        switch (transport) {
+            case "rmi":
+                return connect(host, Integer.getInteger("bank.port", DEFAULT_RMI_PORT));
+            case "nio":
+                return connectNio(host, Integer.getInteger("bank.port", DEFAULT_NIO_PORT));
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+    }
+
+    public static AsyncBankClient connectNio(String host, int port) throws IOException {
+        return new AsyncBankClient(NioBankClient.connect(host, port),
+                ClientRuntime.shared(), DEFAULT_TIMEOUT, RetryPolicy.shared());
+    }
+
+    public CompletableFuture<OperationResult> deposit(long accountId, double amount) {
+        return execute(OperationType.DEPOSIT, accountId, amount);
+    }
+
+    public CompletableFuture<OperationResult> withdraw(long accountId, double amount) {
+        return execute(OperationType.WITHDRAW, accountId, amount);
+    }
+
+    public CompletableFuture<OperationResult> getBalance(long accountId) {
+        return execute(OperationType.GET_BALANCE, accountId, null);
+    }
+
+    /**
+     * Moves {@code amount} between two accounts of the same shard in one
+     * atomic operation.
+     */
+    public CompletableFuture<OperationResult> transfer(long fromAccountId, long toAccountId, double amount) {
+        return execute(OperationType.TRANSFER, fromAccountId, amount, toAccountId);
+    }
+
+    public CompletableFuture<OperationResult> createAccount(long accountId) {
+        return execute(OperationType.CREATE_ACCOUNT, accountId, null);
+    }
+
+    public CompletableFuture<OperationResult> deleteAccount(long accountId) {
+        return execute(OperationType.DELETE_ACCOUNT, accountId, null);
+    }
+
+    public CompletableFuture<OperationResult> getAccountInfo(long accountId) {
+        return execute(OperationType.GET_ACCOUNT_INFO, accountId, null);
+    }
+
+    /**
+     * Sends deposits, withdrawals and balance queries in one call. Entries keep
+     * their own request ids across retries.
+     */
+    public CompletableFuture<List<OperationResult>> executeBatch(List<BatchOperation> operations) {
+        List<BatchOperation> copy = List.copyOf(operations);
+        if (nio != null) {
+            return retry(() -> nio.sendBatch(false, copy));
+        }
+        return submit(() -> atm.executeBatch(copy));
+    }
+
+    /**
+     * Sends any mix of account and balance operations in one call.
+     */
+    public CompletableFuture<List<OperationResult>> executeBranchBatch(List<BatchOperation> operations) {
+        List<BatchOperation> copy = List.copyOf(operations);
+        if (nio != null) {
+            return retry(() -> nio.sendBatch(true, copy));
+        }
+        return submit(() -> requireBranch().executeBranchBatch(copy));
+    }
+
+    /**
+     * Runs {@code call} with this client's timeout and retry settings. The call
+     * must be safe to repeat, which remote operations are as long as they reuse
+     * their request id.
+     */
+    public <T> CompletableFuture<T> submit(RemoteCall<T> call) {
+        return retryPolicy.execute(() -> runtime.call(call, timeout), runtime);
+    }
+
+    public ClientStats stats() {
+        return retryPolicy.stats();
+    }
+
+    /**
+     * Closes the binary transport connection, if any. The runtime may be
+     * shared and is left running.
+     */
+    @Override
+    public void close() {
+        if (nio != null) {
+            nio.close();
+        }
+    }
+
+    public static long newRequestId() {
+        return ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    }
+
+    private CompletableFuture<OperationResult> execute(OperationType type, long accountId, Double amount) {
+        return execute(type, accountId, amount, 0);
+    }
+
+    private CompletableFuture<OperationResult> execute(OperationType type, long accountId, Double amount,
+            long toAccountId) {
+        long requestId = newRequestId();
+        if (nio != null) {
+            return retry(() -> nio.send(type, requestId, accountId, amount, toAccountId));
+        }
+        return submit(() -> switch (type) {
+            case DEPOSIT -> atm.deposit(requestId, accountId, amount);
+            case WITHDRAW -> atm.withdraw(requestId, accountId, amount);
+            case GET_BALANCE -> atm.getBalance(requestId, accountId);
+            case TRANSFER -> atm.transfer(requestId, accountId, toAccountId, amount);
+            case CREATE_ACCOUNT -> requireBranch().createAccount(requestId, accountId);
+            case DELETE_ACCOUNT -> requireBranch().deleteAccount(requestId, accountId);
+            case GET_ACCOUNT_INFO -> requireBranch().getAccountInfo(requestId, accountId);
+        });
+    }
+
+    private <T> CompletableFuture<T> retry(Supplier<CompletableFuture<T>> call) {
+        return retryPolicy.execute(() -> call.get().orTimeout(timeout, TimeUnit.MILLISECONDS), runtime);
+    }
+
+    private IBranchRemote requireBranch() throws RemoteException {
+        if (branch == null) {
+            throw new RemoteException("No branch-server binding for this client");
+        }
+        return branch;
+    }
+}
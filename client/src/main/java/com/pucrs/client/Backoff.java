@@ -0,0 +1,32 @@
+package com.pucrs.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How long to wait before a retry.
+ */
+@FunctionalInterface
+public interface Backoff {
+
+    /**
+     * Delay in milliseconds before retry number {@code retry}, starting at 1.
+     */
+    long delay(int retry);
+
+    static Backoff fixed(long delay) {
+        return retry -> delay;
+    }
+
+    /**
+     * Exponential backoff with full jitter: a uniformly random delay between
+     * zero and {@code base * 2^(retry-1)}, capped at {@code max}. The jitter
+     * spreads out clients that failed at the same moment instead of having
+     * them all come back together.
+     */
+    static Backoff exponential(long base, long max) {
+        return retry -> {
+            long ceiling = retry >= 31 ? max : Math.min(max, base << (retry - 1));
+            return ThreadLocalRandom.current().nextLong(ceiling + 1);
+        };
+    }
+}
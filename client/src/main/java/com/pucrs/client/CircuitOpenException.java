@@ -0,0 +1,14 @@
+package com.pucrs.client;
+
+/**
+ * A request was not sent because the circuit breaker is open after repeated
+ * failures.
+ */
+public class CircuitOpenException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
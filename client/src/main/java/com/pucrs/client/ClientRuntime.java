@@ -0,0 +1,135 @@
+package com.pucrs.client;
+
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived threads and stubs shared by every client in the process. Remote
+ * calls run on one bounded pool, timeouts come from
+ * {@link CompletableFuture#orTimeout} and delayed work runs on a single timer
+ * thread, so a request costs no thread creation, retries included. Stubs are
+ * looked up once per binding and kept until {@link #invalidate} drops them,
+ * typically after the server restarted.
+ *
+ * <p>{@link #shared()} sizes its pool from {@code -Dbank.client.threads}.
+ */
+public final class ClientRuntime implements AutoCloseable {
+
+    public static final int DEFAULT_THREADS = 64;
+
+    private static volatile ClientRuntime shared;
+
+    private final ExecutorService calls;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Remote> stubs = new ConcurrentHashMap<>();
+
+    public ClientRuntime(int threads) {
+        this.calls = Executors.newFixedThreadPool(threads, daemon("bank-client-call"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemon("bank-client-timer"));
+    }
+
+    /**
+     * The process-wide runtime, created on first use. Its threads are daemons,
+     * so it never needs closing.
+     */
+    public static ClientRuntime shared() {
+        ClientRuntime runtime = shared;
+        if (runtime == null) {
+            synchronized (ClientRuntime.class) {
+                runtime = shared;
+                if (runtime == null) {
+                    runtime = new ClientRuntime(Integer.getInteger("bank.client.threads", DEFAULT_THREADS));
+                    shared = runtime;
+                }
+            }
+        }
+        return runtime;
+    }
+
+    /**
+     * Returns the stub bound to {@code name} on the registry at
+     * {@code host:port}, looking it up only the first time.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Remote> T lookup(String host, int port, String name) throws RemoteException, NotBoundException {
+        String key = host + ":" + port + "/" + name;
+        Remote stub = stubs.get(key);
+        if (stub == null) {
+            stub = LocateRegistry.getRegistry(host, port).lookup(name);
+            stubs.put(key, stub);
+        }
+        return (T) stub;
+    }
+
+    /**
+     * Forgets every stub looked up from {@code host:port}.
+     */
+    public void invalidate(String host, int port) {
+        String prefix = host + ":" + port + "/";
+        stubs.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Runs {@code call} on the call pool. The future fails with a
+     * {@link TimeoutException} after {@code timeout} milliseconds; the call
+     * itself keeps its pool thread until RMI returns.
+     */
+    public <T> CompletableFuture<T> call(RemoteCall<T> call, long timeout) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, calls).orTimeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocking form of {@link #call} for interactive clients.
+     */
+    public <T> T await(RemoteCall<T> call, long timeout)
+            throws TimeoutException, ExecutionException, InterruptedException {
+        try {
+            return call(call, timeout).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException timedOut) {
+                throw timedOut;
+            }
+            throw e;
+        }
+    }
+
+    public void schedule(Runnable task, long delay) {
+        timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        calls.shutdownNow();
+        timer.shutdownNow();
+        stubs.clear();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
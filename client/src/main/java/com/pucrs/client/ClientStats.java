@@ -0,0 +1,71 @@
+package com.pucrs.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters kept by a {@link RetryPolicy}.
+ */
+public class ClientStats {
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder attempts = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder successes = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder noResponses = new LongAdder();
+    final LongAdder busy = new LongAdder();
+    final LongAdder budgetExhausted = new LongAdder();
+    final LongAdder shortCircuited = new LongAdder();
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long attempts() {
+        return attempts.sum();
+    }
+
+    public long retries() {
+        return retries.sum();
+    }
+
+    public long successes() {
+        return successes.sum();
+    }
+
+    /**
+     * Requests that gave up, whatever the reason.
+     */
+    public long failures() {
+        return failures.sum();
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    public long noResponses() {
+        return noResponses.sum();
+    }
+
+    public long busy() {
+        return busy.sum();
+    }
+
+    public long budgetExhausted() {
+        return budgetExhausted.sum();
+    }
+
+    public long shortCircuited() {
+        return shortCircuited.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + requests() + " attempts=" + attempts() + " retries=" + retries()
+                + " successes=" + successes() + " failures=" + failures() + " timeouts=" + timeouts()
+                + " noResponses=" + noResponses() + " busy=" + busy() + " budgetExhausted=" + budgetExhausted()
+                + " shortCircuited=" + shortCircuited();
+    }
+}
@@ -0,0 +1,344 @@
+package com.pucrs.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pucrs.interfaces.BatchOperation;
+import com.pucrs.interfaces.BinaryProtocol;
+import com.pucrs.interfaces.IAtmRemote;
+import com.pucrs.interfaces.IBranchRemote;
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.OperationType;
+
+/**
+ * Client side of the binary transport. Requests from any number of threads
+ * share one connection; each gets a correlation id and a future that a single
+ * reader thread completes when the matching reply arrives, so no thread is
+ * held while a request is on the wire.
+ *
+ * <p>The blocking {@link IAtmRemote} and {@link IBranchRemote} methods behave
+ * like their RMI stubs: a reply the server dropped comes back as null and
+ * transport failures are thrown as {@link RemoteException}. A lost connection
+ * fails the requests in flight on it and is opened again on the next request;
+ * requests already sent on the new connection are left to complete.
+ *
+ * <p>It talks to a single server: there is no {@link ShardRouter} over this
+ * transport, so it suits an unsharded server or a client that only touches
+ * the accounts of the shard it connects to.
+ */
+public class NioBankClient implements IAtmRemote, IBranchRemote, AutoCloseable {
+
+    private static final int BUFFER = 64 * 1024;
+
+    private final InetSocketAddress address;
+    private final AtomicLong correlations = new AtomicLong();
+
+    // Guarded by this.
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER);
+    private Connection connection;
+    private boolean closed;
+
+    public NioBankClient(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    public static NioBankClient connect(String host, int port) throws IOException {
+        NioBankClient client = new NioBankClient(host, port);
+        synchronized (client) {
+            client.connection();
+        }
+        return client;
+    }
+
+    /**
+     * Sends one operation. The future completes with null when the server
+     * dropped the reply.
+     */
+    public CompletableFuture<OperationResult> send(OperationType type, long requestId, long accountId,
+            Double amount) {
+        return send(type, requestId, accountId, amount, 0);
+    }
+
+    /**
+     * Sends one operation; {@code toAccountId} is the destination of a
+     * transfer and ignored for other operations.
+     */
+    public CompletableFuture<OperationResult> send(OperationType type, long requestId, long accountId,
+            Double amount, long toAccountId) {
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        long correlation = correlations.incrementAndGet();
+
+        synchronized (this) {
+            try {
+                Connection target = connection();
+                target.pending.put(correlation, reply);
+                out.clear();
+                boolean transfer = type == OperationType.TRANSFER;
+                out.putInt(8 + 1 + 8 + 8 + 8 + (transfer ? 8 : 0))
+                        .putLong(correlation)
+                        .put((byte) type.ordinal())
+                        .putLong(requestId)
+                        .putLong(accountId)
+                        .putDouble(amount == null ? Double.NaN : amount);
+                if (transfer) {
+                    out.putLong(toAccountId);
+                }
+                out.flip();
+                write(target, out);
+            } catch (IOException e) {
+                fail(reply, e);
+            }
+        }
+        return reply.thenApply(OperationResult.class::cast);
+    }
+
+    /**
+     * Sends a batch through {@code executeBatch}, or through
+     * {@code executeBranchBatch} when {@code branch} is set.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<OperationResult>> sendBatch(boolean branch, List<BatchOperation> operations) {
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        long correlation = correlations.incrementAndGet();
+
+        int length = 8 + 1 + 4 + operations.size() * BinaryProtocol.OPERATION_BYTES;
+        if (length > BinaryProtocol.MAX_FRAME) {
+            fail(reply, new IOException("Batch of " + operations.size() + " operations is too large"));
+        } else {
+            ByteBuffer frame = length + 4 <= BUFFER ? null : ByteBuffer.allocate(length + 4);
+            synchronized (this) {
+                try {
+                    Connection connection = connection();
+                    connection.pending.put(correlation, reply);
+                    ByteBuffer target = frame == null ? out : frame;
+                    target.clear();
+                    target.putInt(length)
+                            .putLong(correlation)
+                            .put(branch ? BinaryProtocol.BRANCH_BATCH : BinaryProtocol.BATCH)
+                            .putInt(operations.size());
+                    for (BatchOperation op : operations) {
+                        BinaryProtocol.writeOperation(target, op);
+                    }
+                    target.flip();
+                    write(connection, target);
+                } catch (IOException e) {
+                    fail(reply, e);
+                }
+            }
+        }
+        return reply.thenApply(results -> (List<OperationResult>) results);
+    }
+
+    @Override
+    public OperationResult deposit(long requestId, long accountId, Double amount) throws RemoteException {
+        return await(send(OperationType.DEPOSIT, requestId, accountId, amount));
+    }
+
+    @Override
+    public OperationResult withdraw(long requestId, long accountId, Double amount) throws RemoteException {
+        return await(send(OperationType.WITHDRAW, requestId, accountId, amount));
+    }
+
+    @Override
+    public OperationResult getBalance(long requestId, long accountId) throws RemoteException {
+        return await(send(OperationType.GET_BALANCE, requestId, accountId, null));
+    }
+
+    @Override
+    public OperationResult transfer(long requestId, long fromAccountId, long toAccountId, Double amount)
+            throws RemoteException {
+        return await(send(OperationType.TRANSFER, requestId, fromAccountId, amount, toAccountId));
+    }
+
+    @Override
+    public OperationResult createAccount(long requestId, long accountId) throws RemoteException {
+        return await(send(OperationType.CREATE_ACCOUNT, requestId, accountId, null));
+    }
+
+    @Override
+    public OperationResult deleteAccount(long requestId, long accountId) throws RemoteException {
+        return await(send(OperationType.DELETE_ACCOUNT, requestId, accountId, null));
+    }
+
+    @Override
+    public OperationResult getAccountInfo(long requestId, long accountId) throws RemoteException {
+        return await(send(OperationType.GET_ACCOUNT_INFO, requestId, accountId, null));
+    }
+
+    @Override
+    public List<OperationResult> executeBatch(List<BatchOperation> operations) throws RemoteException {
+        return await(sendBatch(false, operations));
+    }
+
+    @Override
+    public List<OperationResult> executeBranchBatch(List<BatchOperation> operations) throws RemoteException {
+        return await(sendBatch(true, operations));
+    }
+
+    @Override
+    public void close() {
+        Connection current;
+        synchronized (this) {
+            closed = true;
+            current = connection;
+            connection = null;
+        }
+        if (current != null) {
+            current.close(new IOException("Client closed"));
+        }
+    }
+
+    private void write(Connection target, ByteBuffer buffer) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                target.channel.write(buffer);
+            }
+        } catch (IOException e) {
+            disconnect(target, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the open connection, opening it and its reader thread if needed.
+     * Called with this client's lock held.
+     */
+    private Connection connection() throws IOException {
+        if (closed) {
+            throw new IOException("Client closed");
+        }
+        if (connection == null) {
+            SocketChannel opened = SocketChannel.open(address);
+            opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection created = new Connection(opened);
+            connection = created;
+            Thread reader = new Thread(() -> readLoop(created), "nio-client-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return connection;
+    }
+
+    private void readLoop(Connection source) {
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER);
+        try {
+            while (true) {
+                if (source.channel.read(in) < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < 9 || length > BinaryProtocol.MAX_FRAME) {
+                        throw new IOException("Bad reply frame length " + length);
+                    }
+                    if (in.remaining() - 4 < length) {
+                        break;
+                    }
+                    in.getInt();
+                    int end = in.position() + length;
+                    complete(source, in);
+                    in.position(end);
+                }
+                in.compact();
+                if (!in.hasRemaining()) {
+                    // A reply larger than the buffer: grow it to fit.
+                    int length = in.getInt(0);
+                    ByteBuffer larger = ByteBuffer.allocateDirect(length + 4);
+                    in.flip();
+                    larger.put(in);
+                    in = larger;
+                }
+            }
+        } catch (IOException e) {
+            disconnect(source, e);
+        }
+    }
+
+    private void complete(Connection source, ByteBuffer in) {
+        long correlation = in.getLong();
+        byte kind = in.get();
+        CompletableFuture<Object> reply = source.pending.remove(correlation);
+        if (reply == null) {
+            return;
+        }
+        switch (kind) {
+            case BinaryProtocol.REPLY_RESULT -> reply.complete(BinaryProtocol.readResult(in));
+            case BinaryProtocol.REPLY_RESULTS -> reply.complete(BinaryProtocol.readResults(in));
+            case BinaryProtocol.REPLY_EMPTY -> reply.complete(null);
+            case BinaryProtocol.REPLY_ERROR -> reply.completeExceptionally(
+                    new RemoteException(BinaryProtocol.readError(in)));
+            default -> reply.completeExceptionally(new RemoteException("Unknown reply kind " + kind));
+        }
+    }
+
+    private void disconnect(Connection source, IOException cause) {
+        synchronized (this) {
+            if (connection == source) {
+                connection = null;
+            }
+        }
+        source.close(cause);
+    }
+
+    private void fail(CompletableFuture<Object> reply, IOException cause) {
+        reply.completeExceptionally(new RemoteException("Connection to " + address + " failed", cause));
+    }
+
+    /**
+     * One opened channel and the requests sent on it that await a reply. A
+     * request is registered under the client's lock while the connection is
+     * current, so it is either failed with it or answered on it.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Closes the channel and fails every request still waiting on it.
+         */
+        void close(IOException cause) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            for (Long correlation : pending.keySet()) {
+                CompletableFuture<Object> reply = pending.remove(correlation);
+                if (reply != null) {
+                    fail(reply, cause);
+                }
+            }
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> reply) throws RemoteException {
+        try {
+            return reply.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException remote) {
+                throw remote;
+            }
+            throw new RemoteException("Request failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for reply", e);
+        }
+    }
+}
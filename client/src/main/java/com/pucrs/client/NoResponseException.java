@@ -0,0 +1,14 @@
+package com.pucrs.client;
+
+/**
+ * The server accepted a request but returned no reply, which it does when a
+ * response is lost on purpose. The request can be retried with the same id.
+ */
+public class NoResponseException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public NoResponseException(String message) {
+        super(message);
+    }
+}
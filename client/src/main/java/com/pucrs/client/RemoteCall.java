@@ -0,0 +1,11 @@
+package com.pucrs.client;
+
+import java.rmi.RemoteException;
+
+/**
+ * One remote invocation, safe to repeat as long as it reuses its request id.
+ */
+@FunctionalInterface
+public interface RemoteCall<T> {
+    T call() throws RemoteException;
+}
@@ -0,0 +1,54 @@
+package com.pucrs.client;
+
+/**
+ * Token bucket that caps retries to a fraction of the requests sent. Every
+ * request adds {@code ratio} tokens and every retry takes one, so under a
+ * sustained outage retries add at most {@code ratio} extra load. A small
+ * refill per second keeps retries available to clients that send few
+ * requests, like an interactive terminal.
+ */
+public class RetryBudget {
+
+    private final double ratio;
+    private final double perSecond;
+    private final double maxTokens;
+
+    private double tokens;
+    private long refilledAt;
+
+    public RetryBudget(double ratio, double perSecond, double maxTokens) {
+        this.ratio = ratio;
+        this.perSecond = perSecond;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+        this.refilledAt = System.nanoTime();
+    }
+
+    public synchronized void onRequest() {
+        refill();
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    /**
+     * Takes a token for one retry, or returns false when the budget is spent.
+     */
+    public synchronized boolean tryRetry() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    public synchronized double tokens() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(maxTokens, tokens + (now - refilledAt) / 1e9 * perSecond);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,263 @@
+package com.pucrs.client;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.RetryDefaults;
+
+/**
+ * Decides whether and when a failed request is sent again. A request is
+ * retried after a timeout, a dropped reply or a {@code BUSY} reply, waiting
+ * for its {@link Backoff} between attempts, up to {@code maxAttempts} attempts
+ * and as long as the {@link RetryBudget} allows. Every attempt goes through
+ * the {@link CircuitBreaker}, which fails requests at once while the server
+ * keeps failing. Callers must reuse the request id across attempts.
+ *
+ * <p>{@link #shared()} is configured with {@code -Dbank.retry.*} and
+ * {@code -Dbank.breaker.*} properties.
+ */
+public class RetryPolicy {
+
+    // The server sizes its request log from these; see RetryDefaults.
+    public static final int DEFAULT_MAX_ATTEMPTS = RetryDefaults.MAX_ATTEMPTS;
+    public static final long DEFAULT_BASE_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY = RetryDefaults.MAX_DELAY;
+    public static final double DEFAULT_BUDGET = 0.1;
+
+    private static volatile RetryPolicy shared;
+
+    private final int maxAttempts;
+    private final Backoff backoff;
+    private final RetryBudget budget;
+    private final CircuitBreaker breaker;
+    private final ClientStats stats = new ClientStats();
+
+    public RetryPolicy(int maxAttempts, Backoff backoff, RetryBudget budget, CircuitBreaker breaker) {
+        this.maxAttempts = maxAttempts;
+        this.backoff = backoff;
+        this.budget = budget;
+        this.breaker = breaker;
+    }
+
+    /**
+     * The process-wide policy, created on first use.
+     */
+    public static RetryPolicy shared() {
+        RetryPolicy policy = shared;
+        if (policy == null) {
+            synchronized (RetryPolicy.class) {
+                policy = shared;
+                if (policy == null) {
+                    policy = fromProperties();
+                    shared = policy;
+                }
+            }
+        }
+        return policy;
+    }
+
+    private static RetryPolicy fromProperties() {
+        return new RetryPolicy(
+                Integer.getInteger("bank.retry.maxAttempts", DEFAULT_MAX_ATTEMPTS),
+                Backoff.exponential(
+                        Long.getLong("bank.retry.baseDelay", DEFAULT_BASE_DELAY),
+                        Long.getLong("bank.retry.maxDelay", DEFAULT_MAX_DELAY)),
+                new RetryBudget(
+                        Double.parseDouble(System.getProperty("bank.retry.budget", String.valueOf(DEFAULT_BUDGET))),
+                        Double.parseDouble(System.getProperty("bank.retry.budgetPerSecond", "1")),
+                        Double.parseDouble(System.getProperty("bank.retry.budgetMax", "10"))),
+                new CircuitBreaker(
+                        Integer.getInteger("bank.breaker.failures", 5),
+                        Long.getLong("bank.breaker.openMillis", 10000)));
+    }
+
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    public ClientStats stats() {
+        return stats;
+    }
+
+    /**
+     * Runs {@code attempt} until it succeeds, blocking between attempts. A
+     * timeout or dropped reply that is not retried is thrown; a final
+     * {@code BUSY} reply is returned. Any other failure is thrown at once.
+     */
+    public <T> T call(Attempt<T> attempt, Listener listener) throws TimeoutException, ExecutionException,
+            InterruptedException, NoResponseException, CircuitOpenException {
+        stats.requests.increment();
+        budget.onRequest();
+
+        for (int number = 1;; number++) {
+            if (!breaker.allowRequest()) {
+                stats.shortCircuited.increment();
+                stats.failures.increment();
+                throw circuitOpen();
+            }
+            stats.attempts.increment();
+
+            T reply;
+            Exception failure;
+            try {
+                reply = attempt.attempt();
+                failure = retryableReply(reply);
+            } catch (TimeoutException e) {
+                stats.timeouts.increment();
+                reply = null;
+                failure = e;
+            } catch (ExecutionException | InterruptedException | RuntimeException e) {
+                // Resolve the breaker, or a trial in flight would keep it half open for good.
+                breaker.onFailure();
+                stats.failures.increment();
+                throw e;
+            }
+
+            if (failure == null) {
+                breaker.onSuccess();
+                stats.successes.increment();
+                return reply;
+            }
+            breaker.onFailure();
+
+            if (!mayRetry(number)) {
+                stats.failures.increment();
+                if (reply != null) {
+                    return reply;
+                }
+                if (failure instanceof TimeoutException timeout) {
+                    throw timeout;
+                }
+                throw (NoResponseException) failure;
+            }
+            long delay = backoff.delay(number);
+            listener.onRetry(number, failure.getMessage(), delay);
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Asynchronous form of {@link #call}: each attempt is a future and retries
+     * are scheduled on the runtime's timer. Every failure is retried.
+     */
+    public <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> attempt, ClientRuntime runtime) {
+        stats.requests.increment();
+        budget.onRequest();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(attempt, runtime, new AtomicInteger(), result);
+        return result;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> attempt, ClientRuntime runtime, AtomicInteger number,
+            CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        if (!breaker.allowRequest()) {
+            stats.shortCircuited.increment();
+            stats.failures.increment();
+            result.completeExceptionally(circuitOpen());
+            return;
+        }
+        number.incrementAndGet();
+        stats.attempts.increment();
+
+        CompletableFuture<T> future;
+        try {
+            future = attempt.get();
+        } catch (RuntimeException e) {
+            breaker.onFailure();
+            stats.failures.increment();
+            result.completeExceptionally(e);
+            return;
+        }
+        future.whenComplete((reply, error) -> {
+            Throwable failure;
+            if (error == null) {
+                failure = retryableReply(reply);
+            } else {
+                failure = unwrap(error);
+                if (failure instanceof TimeoutException) {
+                    stats.timeouts.increment();
+                }
+            }
+
+            if (failure == null) {
+                breaker.onSuccess();
+                stats.successes.increment();
+                result.complete(reply);
+                return;
+            }
+            breaker.onFailure();
+
+            if (result.isDone() || !mayRetry(number.get())) {
+                stats.failures.increment();
+                if (error == null && reply != null) {
+                    result.complete(reply);
+                } else {
+                    result.completeExceptionally(failure);
+                }
+                return;
+            }
+            runtime.schedule(() -> attempt(attempt, runtime, number, result), backoff.delay(number.get()));
+        });
+    }
+
+    private boolean mayRetry(int attempts) {
+        if (attempts >= maxAttempts) {
+            return false;
+        }
+        if (!budget.tryRetry()) {
+            stats.budgetExhausted.increment();
+            return false;
+        }
+        stats.retries.increment();
+        return true;
+    }
+
+    /**
+     * Returns why {@code reply} should be retried, or null if it is final.
+     * Admission control refuses a batch as a whole, so a batch is busy when
+     * its first entry is.
+     */
+    private Exception retryableReply(Object reply) {
+        if (reply == null) {
+            stats.noResponses.increment();
+            return new NoResponseException("No response from server.");
+        }
+        Object first = reply instanceof List<?> list && !list.isEmpty() ? list.get(0) : reply;
+        if (first instanceof OperationResult result && result.getStatus() == OperationResult.Status.BUSY) {
+            stats.busy.increment();
+            return new NoResponseException(result.getMessage());
+        }
+        return null;
+    }
+
+    private static CircuitOpenException circuitOpen() {
+        return new CircuitOpenException("Server is unavailable, request not sent.");
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    @FunctionalInterface
+    public interface Attempt<T> {
+        T attempt() throws TimeoutException, ExecutionException, InterruptedException;
+    }
+
+    @FunctionalInterface
+    public interface Listener {
+        void onRetry(int attempt, String reason, long delay);
+    }
+}
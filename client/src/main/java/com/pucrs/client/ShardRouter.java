@@ -0,0 +1,372 @@
+package com.pucrs.client;
+
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pucrs.interfaces.BatchOperation;
+import com.pucrs.interfaces.IAtmRemote;
+import com.pucrs.interfaces.IBranchRemote;
+import com.pucrs.interfaces.IReadRemote;
+import com.pucrs.interfaces.IShardDirectory;
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.ShardMap;
+
+/**
+ * Sends each call to the shard that owns its account. The shard map is read
+ * from the {@code shard-map} binding of the server the router was connected
+ * to; a server without one is treated as the only shard. Batches are split by
+ * shard and their replies put back in order.
+ *
+ * <p>A {@code WRONG_SHARD} reply means the map changed: it is reloaded and the
+ * call resent once. When a shard fails, its stubs are dropped from the
+ * runtime so the next call looks them up again.
+ *
+ * <p>Balance and account reads go to the shard's read replicas, taken in turn
+ * from the list its primary reports, when there are any. Each read requires
+ * the replica to have applied the newest version this router has seen from
+ * the shard, so a client always reads its own writes; a replica that is
+ * behind answers {@code STALE} and the read goes to the primary instead. Set
+ * {@code bank.client.readReplicas=false} to send every read to the primary.
+ */
+public class ShardRouter implements IAtmRemote, IBranchRemote {
+
+    private static final String ATM = "atm-server";
+    private static final String BRANCH = "branch-server";
+    private static final String READ = "read-server";
+    private static final boolean READ_REPLICAS = Boolean.parseBoolean(
+            System.getProperty("bank.client.readReplicas", "true"));
+    private static final long REPLICA_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final ClientRuntime runtime;
+    private final String host;
+    private final int port;
+    private volatile ShardMap shards;
+    // Versions and read replicas of each shard in shards; replaced before it.
+    private volatile Shard[] state;
+
+    private ShardRouter(ClientRuntime runtime, String host, int port, ShardMap shards) {
+        this.runtime = runtime;
+        this.host = host;
+        this.port = port;
+        this.state = Shard.forMap(shards);
+        this.shards = shards;
+    }
+
+    public static ShardRouter connect(ClientRuntime runtime, String host, int port)
+            throws RemoteException, NotBoundException {
+        return new ShardRouter(runtime, host, port, load(runtime, host, port));
+    }
+
+    public ShardMap shards() {
+        return shards;
+    }
+
+    @Override
+    public OperationResult deposit(long requestId, long accountId, Double amount) throws RemoteException {
+        return route(accountId, ATM, (IAtmRemote atm) -> atm.deposit(requestId, accountId, amount));
+    }
+
+    @Override
+    public OperationResult withdraw(long requestId, long accountId, Double amount) throws RemoteException {
+        return route(accountId, ATM, (IAtmRemote atm) -> atm.withdraw(requestId, accountId, amount));
+    }
+
+    @Override
+    public OperationResult getBalance(long requestId, long accountId) throws RemoteException {
+        return read(accountId, (replica, minVersion) -> replica.getBalance(requestId, accountId, minVersion),
+                ATM, (IAtmRemote atm) -> atm.getBalance(requestId, accountId));
+    }
+
+    /**
+     * Goes to the shard of the source account, which refuses a destination
+     * on another shard.
+     */
+    @Override
+    public OperationResult transfer(long requestId, long fromAccountId, long toAccountId, Double amount)
+            throws RemoteException {
+        return route(fromAccountId, ATM,
+                (IAtmRemote atm) -> atm.transfer(requestId, fromAccountId, toAccountId, amount));
+    }
+
+    @Override
+    public OperationResult createAccount(long requestId, long accountId) throws RemoteException {
+        return route(accountId, BRANCH, (IBranchRemote branch) -> branch.createAccount(requestId, accountId));
+    }
+
+    @Override
+    public OperationResult deleteAccount(long requestId, long accountId) throws RemoteException {
+        return route(accountId, BRANCH, (IBranchRemote branch) -> branch.deleteAccount(requestId, accountId));
+    }
+
+    @Override
+    public OperationResult getAccountInfo(long requestId, long accountId) throws RemoteException {
+        return read(accountId, (replica, minVersion) -> replica.getAccountInfo(requestId, accountId, minVersion),
+                BRANCH, (IBranchRemote branch) -> branch.getAccountInfo(requestId, accountId));
+    }
+
+    @Override
+    public List<OperationResult> executeBatch(List<BatchOperation> operations) throws RemoteException {
+        return routeBatch(operations, ATM);
+    }
+
+    @Override
+    public List<OperationResult> executeBranchBatch(List<BatchOperation> operations) throws RemoteException {
+        return routeBatch(operations, BRANCH);
+    }
+
+    private <R extends Remote> OperationResult route(long accountId, String binding, ShardCall<R> call)
+            throws RemoteException {
+        ShardMap map = shards;
+        OperationResult reply = send(map, map.shardOf(accountId), binding, call);
+        if (reply != null && reply.getStatus() == OperationResult.Status.WRONG_SHARD) {
+            map = reload();
+            reply = send(map, map.shardOf(accountId), binding, call);
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a read to a replica of the account's shard, falling back to the
+     * primary when there is none or it cannot answer.
+     */
+    private <R extends Remote> OperationResult read(long accountId, ReplicaCall replicaCall, String binding,
+            ShardCall<R> call) throws RemoteException {
+        if (READ_REPLICAS) {
+            ShardMap map = shards;
+            int shard = map.shardOf(accountId);
+            Shard[] current = state;
+            if (shard < current.length) {
+                Shard target = current[shard];
+                String replica = replicaFor(map, shard, target);
+                if (replica != null) {
+                    OperationResult reply = readReplica(replica, target, replicaCall);
+                    if (reply != null && reply.getStatus() != OperationResult.Status.STALE
+                            && reply.getStatus() != OperationResult.Status.WRONG_SHARD) {
+                        return reply;
+                    }
+                }
+            }
+        }
+        return route(accountId, binding, call);
+    }
+
+    private OperationResult readReplica(String replica, Shard target, ReplicaCall call) {
+        int colon = replica.lastIndexOf(':');
+        String replicaHost = replica.substring(0, colon);
+        int replicaPort = Integer.parseInt(replica.substring(colon + 1));
+        try {
+            OperationResult reply = call.call(runtime.lookup(replicaHost, replicaPort, READ), target.version.get());
+            target.observe(reply);
+            return reply;
+        } catch (RemoteException | NotBoundException e) {
+            // Skip it until the primary lists it again.
+            runtime.invalidate(replicaHost, replicaPort);
+            target.drop(replica);
+            return null;
+        }
+    }
+
+    /**
+     * Picks the next read replica of a shard, asking its primary for the list
+     * when the last answer is too old. Returns null when there is none.
+     */
+    private String replicaFor(ShardMap map, int shard, Shard target) {
+        if (System.nanoTime() - target.refreshedAt >= REPLICA_REFRESH_NANOS) {
+            synchronized (target) {
+                if (System.nanoTime() - target.refreshedAt >= REPLICA_REFRESH_NANOS) {
+                    List<String> replicas;
+                    try {
+                        IShardDirectory directory = runtime.lookup(map.host(shard), map.port(shard), "shard-map");
+                        replicas = List.copyOf(directory.getReadReplicas());
+                    } catch (RemoteException | NotBoundException e) {
+                        replicas = List.of();
+                    }
+                    target.replicas = replicas;
+                    target.refreshedAt = System.nanoTime();
+                }
+            }
+        }
+        List<String> replicas = target.replicas;
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        return replicas.get(Math.floorMod(target.next.getAndIncrement(), replicas.size()));
+    }
+
+    private <R extends Remote> OperationResult send(ShardMap map, int shard, String binding, ShardCall<R> call)
+            throws RemoteException {
+        try {
+            OperationResult reply = call.call(stub(map, shard, binding));
+            observe(shard, reply);
+            return reply;
+        } catch (RemoteException e) {
+            runtime.invalidate(map.host(shard), map.port(shard));
+            throw e;
+        }
+    }
+
+    /**
+     * Sends each shard its part of the batch. Returns null, so the whole batch
+     * is resent, if any part came back null; entries that did reach a shard
+     * are answered from its request log the second time.
+     */
+    private List<OperationResult> routeBatch(List<BatchOperation> operations, String binding)
+            throws RemoteException {
+        ShardMap map = shards;
+        if (map.size() == 1) {
+            List<OperationResult> replies = sendBatch(map, 0, binding, operations);
+            if (replies == null || !hasWrongShard(replies)) {
+                return replies;
+            }
+            map = reload();
+        }
+
+        List<List<Integer>> indexes = new ArrayList<>();
+        for (int shard = 0; shard < map.size(); shard++) {
+            indexes.add(new ArrayList<>());
+        }
+        for (int i = 0; i < operations.size(); i++) {
+            indexes.get(map.shardOf(operations.get(i).getAccountId())).add(i);
+        }
+
+        List<OperationResult> replies = new ArrayList<>(Collections.nCopies(operations.size(), null));
+        for (int shard = 0; shard < map.size(); shard++) {
+            List<Integer> part = indexes.get(shard);
+            if (part.isEmpty()) {
+                continue;
+            }
+            List<BatchOperation> ops = new ArrayList<>(part.size());
+            for (int i : part) {
+                ops.add(operations.get(i));
+            }
+            List<OperationResult> partReplies = sendBatch(map, shard, binding, ops);
+            if (partReplies == null) {
+                return null;
+            }
+            for (int i = 0; i < part.size(); i++) {
+                replies.set(part.get(i), partReplies.get(i));
+            }
+        }
+        return replies;
+    }
+
+    private List<OperationResult> sendBatch(ShardMap map, int shard, String binding, List<BatchOperation> ops)
+            throws RemoteException {
+        try {
+            List<OperationResult> replies = binding.equals(ATM)
+                    ? this.<IAtmRemote>stub(map, shard, binding).executeBatch(ops)
+                    : this.<IBranchRemote>stub(map, shard, binding).executeBranchBatch(ops);
+            if (replies != null) {
+                for (OperationResult reply : replies) {
+                    observe(shard, reply);
+                }
+            }
+            return replies;
+        } catch (RemoteException e) {
+            runtime.invalidate(map.host(shard), map.port(shard));
+            throw e;
+        }
+    }
+
+    private void observe(int shard, OperationResult reply) {
+        Shard[] current = state;
+        if (shard < current.length) {
+            current[shard].observe(reply);
+        }
+    }
+
+    private static boolean hasWrongShard(List<OperationResult> replies) {
+        for (OperationResult reply : replies) {
+            if (reply != null && reply.getStatus() == OperationResult.Status.WRONG_SHARD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private <T extends Remote> T stub(ShardMap map, int shard, String binding) throws RemoteException {
+        try {
+            return runtime.lookup(map.host(shard), map.port(shard), binding);
+        } catch (NotBoundException e) {
+            throw new RemoteException("Shard " + shard + " has no " + binding + " binding", e);
+        }
+    }
+
+    private ShardMap reload() throws RemoteException {
+        try {
+            runtime.invalidate(host, port);
+            ShardMap map = load(runtime, host, port);
+            state = Shard.forMap(map);
+            shards = map;
+            return map;
+        } catch (NotBoundException e) {
+            throw new RemoteException("Could not reload the shard map", e);
+        }
+    }
+
+    private static ShardMap load(ClientRuntime runtime, String host, int port)
+            throws RemoteException, NotBoundException {
+        IShardDirectory directory;
+        try {
+            directory = runtime.lookup(host, port, "shard-map");
+        } catch (NotBoundException e) {
+            // A server that predates sharding holds every account.
+            runtime.<IAtmRemote>lookup(host, port, ATM);
+            return ShardMap.single(host, port);
+        }
+        ShardMap map = directory.getShardMap();
+        // A lone server names itself as it sees itself; reach it the way we did.
+        return map.size() == 1 ? ShardMap.single(host, port) : map;
+    }
+
+    @FunctionalInterface
+    private interface ShardCall<R extends Remote> {
+
+        OperationResult call(R remote) throws RemoteException;
+    }
+
+    @FunctionalInterface
+    private interface ReplicaCall {
+
+        OperationResult call(IReadRemote replica, long minVersion) throws RemoteException;
+    }
+
+    /**
+     * Newest version seen from one shard and its known read replicas.
+     */
+    private static final class Shard {
+
+        final AtomicLong version = new AtomicLong();
+        final AtomicInteger next = new AtomicInteger();
+        volatile List<String> replicas = List.of();
+        // Due for a refresh from the start.
+        volatile long refreshedAt = System.nanoTime() - REPLICA_REFRESH_NANOS;
+
+        static Shard[] forMap(ShardMap map) {
+            Shard[] shards = new Shard[map.size()];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new Shard();
+            }
+            return shards;
+        }
+
+        void observe(OperationResult reply) {
+            if (reply != null && reply.getVersion() > 0) {
+                version.accumulateAndGet(reply.getVersion(), Math::max);
+            }
+        }
+
+        synchronized void drop(String replica) {
+            List<String> remaining = new ArrayList<>(replicas);
+            remaining.remove(replica);
+            replicas = List.copyOf(remaining);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.pucrs.interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+public interface IAtmRemote extends Remote {
+
+    OperationResult deposit(long requestId, long accountId, Double amount) throws RemoteException;
+
+    OperationResult withdraw(long requestId, long accountId, Double amount) throws RemoteException;
+
+    OperationResult getBalance(long requestId, long accountId) throws RemoteException;
+
+    /**
+     * Moves {@code amount} from one account to another in a single step: both
+     * balances change or neither does. The reply is about the source account,
+     * or about the destination when that one does not exist. Both accounts
+     * must be on the same shard.
+     */
+    OperationResult transfer(long requestId, long fromAccountId, long toAccountId, Double amount)
+            throws RemoteException;
+
+    /**
+     * Applies deposits, withdrawals and balance queries in one call. Returns one
+     * reply per operation, in the same order, or null if the whole batch has to
+     * be resent.
+     */
+    List<OperationResult> executeBatch(List<BatchOperation> operations) throws RemoteException;
+
+}
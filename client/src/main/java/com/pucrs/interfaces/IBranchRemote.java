@@ -0,0 +1,22 @@
+package com.pucrs.interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+public interface IBranchRemote extends Remote {
+
+    OperationResult createAccount(long requestId, long accountId) throws RemoteException;
+
+    OperationResult deleteAccount(long requestId, long accountId) throws RemoteException;
+
+    OperationResult getAccountInfo(long requestId, long accountId) throws RemoteException;
+
+    /**
+     * Applies any mix of account and balance operations in one call. Returns
+     * one reply per operation, in the same order, or null if the whole batch
+     * has to be resent.
+     */
+    List<OperationResult> executeBranchBatch(List<BatchOperation> operations) throws RemoteException;
+
+}
@@ -0,0 +1,21 @@
+package com.pucrs.interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Bound as {@code shard-map} on every shard, so a client can bootstrap from
+ * any of them.
+ */
+public interface IShardDirectory extends Remote {
+
+    ShardMap getShardMap() throws RemoteException;
+
+    /**
+     * Read replicas of this shard that are currently in sync, as
+     * {@code host:port} of their registries.
+     */
+    List<String> getReadReplicas() throws RemoteException;
+
+}
@@ -0,0 +1,5 @@
+package com.pucrs.interfaces;
+
+public enum OperationType {
+    DEPOSIT, WITHDRAW, GET_BALANCE, CREATE_ACCOUNT, DELETE_ACCOUNT, GET_ACCOUNT_INFO, TRANSFER
+}
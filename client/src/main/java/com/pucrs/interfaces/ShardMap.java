@@ -0,0 +1,85 @@
+package com.pucrs.interfaces;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which server owns which account. The 64-bit hash of an account id is split
+ * into {@link #size()} equal ranges and shard {@code i} owns range {@code i}.
+ * Shards are listed as the {@code host:port} of their RMI registry, parsed
+ * from a comma separated list such as {@code host1:8080,host2:8080}.
+ */
+public final class ShardMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] hosts;
+    private final int[] ports;
+
+    private ShardMap(String[] hosts, int[] ports) {
+        this.hosts = hosts;
+        this.ports = ports;
+    }
+
+    public static ShardMap parse(String spec) {
+        List<String> entries = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            if (!entry.isBlank()) {
+                entries.add(entry.trim());
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("Empty shard map");
+        }
+        String[] hosts = new String[entries.size()];
+        int[] ports = new int[entries.size()];
+        for (int i = 0; i < hosts.length; i++) {
+            String entry = entries.get(i);
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Shard must be host:port: " + entry);
+            }
+            hosts[i] = entry.substring(0, colon);
+            ports[i] = Integer.parseInt(entry.substring(colon + 1));
+        }
+        return new ShardMap(hosts, ports);
+    }
+
+    public static ShardMap single(String host, int port) {
+        return new ShardMap(new String[] { host }, new int[] { port });
+    }
+
+    public int size() {
+        return hosts.length;
+    }
+
+    public String host(int shard) {
+        return hosts[shard];
+    }
+
+    public int port(int shard) {
+        return ports[shard];
+    }
+
+    public int shardOf(long accountId) {
+        if (hosts.length == 1) {
+            return 0;
+        }
+        // SplitMix64 finalizer, so consecutive ids spread over every shard.
+        long h = accountId;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        return (int) (((h >>> 32) * hosts.length) >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < hosts.length; i++) {
+            text.append(i == 0 ? "" : ",").append(hosts[i]).append(':').append(ports[i]);
+        }
+        return text.toString();
+    }
+}
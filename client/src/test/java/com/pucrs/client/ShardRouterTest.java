@@ -0,0 +1,259 @@
+package com.pucrs.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.pucrs.interfaces.BatchOperation;
+import com.pucrs.interfaces.IAtmRemote;
+import com.pucrs.interfaces.IBranchRemote;
+import com.pucrs.interfaces.IReadRemote;
+import com.pucrs.interfaces.IShardDirectory;
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.OperationType;
+import com.pucrs.interfaces.ShardMap;
+
+class ShardRouterTest {
+
+    private static final long PRIMARY_BALANCE = 2;
+    private static final long REPLICA_BALANCE = 1;
+
+    private final List<Remote> exported = new ArrayList<>();
+    private final ClientRuntime runtime = new ClientRuntime(2);
+
+    @AfterEach
+    void close() {
+        runtime.close();
+        for (Remote remote : exported) {
+            try {
+                UnicastRemoteObject.unexportObject(remote, true);
+            } catch (RemoteException e) {
+                // Already gone.
+            }
+        }
+    }
+
+    @Test
+    void sendsEachAccountToItsShard() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        ShardMap map = ShardMap.parse("localhost:" + portA + ",localhost:" + portB);
+        FakeShard a = shard(portA, 0, map);
+        FakeShard b = shard(portB, 1, map);
+
+        ShardRouter router = ShardRouter.connect(runtime, "localhost", portA);
+        List<BatchOperation> batch = new ArrayList<>();
+        for (long accountId = 1; accountId <= 100; accountId++) {
+            assertEquals(OperationResult.Status.OK, router.deposit(accountId, accountId, 1.0).getStatus());
+            batch.add(BatchOperation.deposit(1000 + accountId, accountId, 1.0));
+        }
+        List<OperationResult> replies = router.executeBatch(batch);
+
+        assertEquals(2, router.shards().size());
+        assertTrue(!a.accounts.isEmpty() && !b.accounts.isEmpty());
+        assertEquals(100, a.accounts.size() + b.accounts.size());
+        for (long accountId = 1; accountId <= 100; accountId++) {
+            FakeShard owner = map.shardOf(accountId) == 0 ? a : b;
+            assertTrue(owner.accounts.contains(accountId), "account " + accountId);
+            // Batch replies come back in the order they were sent.
+            assertEquals(accountId, replies.get((int) accountId - 1).getAccountId());
+        }
+    }
+
+    @Test
+    void wrongShardReloadsTheMapAndResends() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        ShardMap before = ShardMap.parse("localhost:" + portA + ",localhost:" + portB);
+        FakeShard a = shard(portA, 0, before);
+        FakeShard b = shard(portB, 1, before);
+        ShardRouter router = ShardRouter.connect(runtime, "localhost", portA);
+        long accountId = firstOwnedBy(before, 0);
+
+        // The shards swap ranges behind the router's back.
+        ShardMap after = ShardMap.parse("localhost:" + portB + ",localhost:" + portA);
+        a.map = after;
+        a.index = 1;
+        b.map = after;
+        b.index = 0;
+
+        assertEquals(OperationResult.Status.OK, router.deposit(1, accountId, 1.0).getStatus());
+        assertEquals(portB, router.shards().port(0));
+        assertEquals(Set.of(accountId), b.accounts);
+        assertTrue(a.accounts.isEmpty());
+    }
+
+    @Test
+    void readsGoToAReplicaThatHasCaughtUp() throws Exception {
+        int portA = freePort();
+        int replicaPort = freePort();
+        FakeShard a = shard(portA, 0, ShardMap.single("localhost", portA));
+        a.replicas = List.of("localhost:" + replicaPort);
+        FakeReplica replica = new FakeReplica();
+        bind(replicaPort, "read-server", replica);
+        ShardRouter router = ShardRouter.connect(runtime, "localhost", portA);
+
+        router.deposit(1, 7, 1.0);
+        replica.applied = a.version;
+        assertEquals(REPLICA_BALANCE, router.getBalance(2, 7).getBalance());
+        assertEquals(a.version, replica.lastMinVersion);
+
+        // A write the replica has not applied yet sends the read to the primary.
+        router.deposit(3, 7, 1.0);
+        assertEquals(PRIMARY_BALANCE, router.getBalance(4, 7).getBalance());
+        assertEquals(a.version, replica.lastMinVersion);
+    }
+
+    private FakeShard shard(int port, int index, ShardMap map) throws Exception {
+        FakeShard shard = new FakeShard(index, map);
+        Registry registry = bind(port, "atm-server", shard);
+        registry.rebind("branch-server", shard);
+        registry.rebind("shard-map", shard);
+        return shard;
+    }
+
+    private Registry bind(int port, String name, Remote remote) throws Exception {
+        Registry registry = LocateRegistry.createRegistry(port);
+        exported.add(registry);
+        exported.add(remote);
+        registry.rebind(name, remote);
+        return registry;
+    }
+
+    private static long firstOwnedBy(ShardMap map, int shard) {
+        long accountId = 1;
+        while (map.shardOf(accountId) != shard) {
+            accountId++;
+        }
+        return accountId;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Shard that refuses accounts it does not own and counts a version per
+     * write.
+     */
+    static final class FakeShard extends UnicastRemoteObject implements IAtmRemote, IBranchRemote, IShardDirectory {
+
+        final Set<Long> accounts = ConcurrentHashMap.newKeySet();
+        volatile ShardMap map;
+        volatile int index;
+        volatile List<String> replicas = List.of();
+        volatile long version;
+
+        FakeShard(int index, ShardMap map) throws RemoteException {
+            this.index = index;
+            this.map = map;
+        }
+
+        @Override
+        public ShardMap getShardMap() {
+            return map;
+        }
+
+        @Override
+        public List<String> getReadReplicas() {
+            return replicas;
+        }
+
+        @Override
+        public synchronized OperationResult deposit(long requestId, long accountId, Double amount) {
+            if (map.shardOf(accountId) != index) {
+                return reply(OperationResult.Status.WRONG_SHARD, OperationType.DEPOSIT, accountId);
+            }
+            accounts.add(accountId);
+            return reply(OperationResult.Status.OK, OperationType.DEPOSIT, accountId).withVersion(++version);
+        }
+
+        @Override
+        public OperationResult withdraw(long requestId, long accountId, Double amount) {
+            return deposit(requestId, accountId, amount);
+        }
+
+        @Override
+        public OperationResult getBalance(long requestId, long accountId) {
+            return reply(OperationResult.Status.OK, OperationType.GET_BALANCE, accountId).withVersion(version);
+        }
+
+        @Override
+        public OperationResult transfer(long requestId, long fromAccountId, long toAccountId, Double amount) {
+            return deposit(requestId, fromAccountId, amount);
+        }
+
+        @Override
+        public List<OperationResult> executeBatch(List<BatchOperation> operations) {
+            List<OperationResult> replies = new ArrayList<>();
+            for (BatchOperation operation : operations) {
+                replies.add(deposit(operation.getRequestId(), operation.getAccountId(), operation.getAmount()));
+            }
+            return replies;
+        }
+
+        @Override
+        public OperationResult createAccount(long requestId, long accountId) {
+            return deposit(requestId, accountId, 0.0);
+        }
+
+        @Override
+        public OperationResult deleteAccount(long requestId, long accountId) {
+            return deposit(requestId, accountId, 0.0);
+        }
+
+        @Override
+        public OperationResult getAccountInfo(long requestId, long accountId) {
+            return getBalance(requestId, accountId);
+        }
+
+        @Override
+        public List<OperationResult> executeBranchBatch(List<BatchOperation> operations) {
+            return executeBatch(operations);
+        }
+
+        private static OperationResult reply(OperationResult.Status status, OperationType type, long accountId) {
+            return new OperationResult(status, type, accountId, 0, PRIMARY_BALANCE);
+        }
+    }
+
+    /**
+     * Replica that has applied the primary's writes up to {@code applied}.
+     */
+    static final class FakeReplica extends UnicastRemoteObject implements IReadRemote {
+
+        volatile long applied;
+        volatile long lastMinVersion;
+
+        FakeReplica() throws RemoteException {
+        }
+
+        @Override
+        public OperationResult getBalance(long requestId, long accountId, long minVersion) {
+            lastMinVersion = minVersion;
+            OperationResult.Status status = minVersion > applied ? OperationResult.Status.STALE : OperationResult.Status.OK;
+            return new OperationResult(status, OperationType.GET_BALANCE, accountId, 0, REPLICA_BALANCE);
+        }
+
+        @Override
+        public OperationResult getAccountInfo(long requestId, long accountId, long minVersion) {
+            return getBalance(requestId, accountId, minVersion);
+        }
+    }
+}
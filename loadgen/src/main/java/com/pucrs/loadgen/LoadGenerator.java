@@ -0,0 +1,233 @@
+package com.pucrs.loadgen;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.pucrs.client.AsyncBankClient;
+import com.pucrs.client.ClientStats;
+import com.pucrs.interfaces.BatchOperation;
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.OperationType;
+
+/**
+ * Headless load generator for the bank server. It creates {@code accounts}
+ * accounts, then sends a weighted mix of operations at a fixed rate for
+ * {@code duration} seconds and prints throughput, latency percentiles and the
+ * client's retry counters.
+ *
+ * <p>The load is open-loop: request {@code i} is due at
+ * {@code start + i / rate} whether or not earlier requests have completed, and
+ * its latency is measured from that due time rather than from when it was
+ * actually sent. A stalled server therefore shows up as the queueing delay
+ * real users would see instead of being hidden by a generator that waited for
+ * it (coordinated omission). The latency from the actual send is reported
+ * next to it for comparison.
+ *
+ * <p>Settings are system properties: {@code loadgen.host}, {@code loadgen.rate}
+ * (requests per second), {@code loadgen.duration} and {@code loadgen.warmup}
+ * (seconds), {@code loadgen.accounts}, {@code loadgen.firstAccount} and
+ * {@code loadgen.mix}. The transport and retry settings are those of
+ * {@link AsyncBankClient} and the shared retry policy.
+ */
+public class LoadGenerator {
+
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(10);
+    private static final int SETUP_BATCH = 1000;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    private final AsyncBankClient client;
+    private final OperationMix mix;
+    private final double rate;
+    private final long duration;
+    private final long warmup;
+    private final long firstAccount;
+    private final int accounts;
+
+    private final Histogram corrected = new ConcurrentHistogram(HIGHEST_LATENCY, 3);
+    private final Histogram uncorrected = new ConcurrentHistogram(HIGHEST_LATENCY, 3);
+    private final Map<OperationType, Histogram> byOperation = new EnumMap<>(OperationType.class);
+    private final Map<OperationResult.Status, LongAdder> statuses = new EnumMap<>(OperationResult.Status.class);
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicLong nextNewAccount;
+
+    LoadGenerator(AsyncBankClient client, OperationMix mix, double rate, long duration, long warmup,
+            long firstAccount, int accounts) {
+        this.client = client;
+        this.mix = mix;
+        this.rate = rate;
+        this.duration = duration;
+        this.warmup = warmup;
+        this.firstAccount = firstAccount;
+        this.accounts = accounts;
+        this.nextNewAccount = new AtomicLong(firstAccount + accounts);
+        for (OperationType type : OperationType.values()) {
+            byOperation.put(type, new ConcurrentHistogram(HIGHEST_LATENCY, 3));
+        }
+        for (OperationResult.Status status : OperationResult.Status.values()) {
+            statuses.put(status, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("loadgen.host", "localhost");
+        OperationMix mix = OperationMix.parse(
+                System.getProperty("loadgen.mix", "deposit:20,withdraw:20,getBalance:55,createAccount:5"));
+
+        try (AsyncBankClient client = AsyncBankClient.connect(host)) {
+            LoadGenerator generator = new LoadGenerator(client, mix,
+                    Double.parseDouble(System.getProperty("loadgen.rate", "200")),
+                    Long.getLong("loadgen.duration", 30),
+                    Long.getLong("loadgen.warmup", 5),
+                    Long.getLong("loadgen.firstAccount", 1_000_000),
+                    Integer.getInteger("loadgen.accounts", 1000));
+            generator.createAccounts();
+            generator.run();
+            generator.report(System.out);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Creates the account range in batches; accounts left over from an
+     * earlier run are reused.
+     */
+    void createAccounts() {
+        System.out.println("Creating " + accounts + " accounts...");
+        List<CompletableFuture<List<OperationResult>>> batches = new ArrayList<>();
+        for (int from = 0; from < accounts; from += SETUP_BATCH) {
+            List<BatchOperation> batch = new ArrayList<>();
+            for (int i = from; i < Math.min(accounts, from + SETUP_BATCH); i++) {
+                batch.add(BatchOperation.createAccount(AsyncBankClient.newRequestId(), firstAccount + i));
+            }
+            batches.add(client.executeBranchBatch(batch));
+        }
+        CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    void run() {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long recordFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = recordFrom + TimeUnit.SECONDS.toNanos(duration);
+        List<CompletableFuture<?>> inFlight = new ArrayList<>();
+
+        System.out.println("Sending " + rate + " requests/s for " + duration + " s after " + warmup
+                + " s of warmup...");
+        for (long i = 0;; i++) {
+            long due = start + i * interval;
+            if (due >= end) {
+                break;
+            }
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            inFlight.add(send(mix.next(), due, due >= recordFrom));
+            if (inFlight.size() >= 4096) {
+                inFlight.removeIf(CompletableFuture::isDone);
+            }
+        }
+        CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0]))
+                .exceptionally(error -> null)
+                .join();
+    }
+
+    private CompletableFuture<OperationResult> send(OperationType type, long due, boolean record) {
+        long sent = System.nanoTime();
+        CompletableFuture<OperationResult> reply = call(type);
+        return reply.whenComplete((result, error) -> {
+            if (!record) {
+                return;
+            }
+            long done = System.nanoTime();
+            if (error != null) {
+                failed.increment();
+                return;
+            }
+            corrected.recordValue(Math.min(done - due, HIGHEST_LATENCY));
+            uncorrected.recordValue(Math.min(done - sent, HIGHEST_LATENCY));
+            byOperation.get(type).recordValue(Math.min(done - due, HIGHEST_LATENCY));
+            statuses.get(result.getStatus()).increment();
+            if (result.isReplayed()) {
+                replayed.increment();
+            }
+        });
+    }
+
+    private CompletableFuture<OperationResult> call(OperationType type) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long account = firstAccount + random.nextInt(accounts);
+        double amount = 1 + random.nextInt(100);
+        switch (type) {
+            case DEPOSIT:
+                return client.deposit(account, amount);
+            case WITHDRAW:
+                return client.withdraw(account, amount);
+            case GET_BALANCE:
+                return client.getBalance(account);
+            case CREATE_ACCOUNT:
+                return client.createAccount(nextNewAccount.getAndIncrement());
+            case DELETE_ACCOUNT:
+                return client.deleteAccount(account);
+            case GET_ACCOUNT_INFO:
+                return client.getAccountInfo(account);
+            case TRANSFER:
+                return client.transfer(account, firstAccount + random.nextInt(accounts), amount);
+            default:
+                throw new IllegalArgumentException("Unsupported operation " + type);
+        }
+    }
+
+    void report(PrintStream out) {
+        long completed = corrected.getTotalCount();
+        out.println();
+        out.printf("Completed: %d in %d s (%.1f requests/s), failed: %d%n", completed, duration,
+                completed / (double) duration, failed.sum());
+        printLatency(out, "Latency from due time (corrected)", corrected);
+        printLatency(out, "Latency from send time (uncorrected)", uncorrected);
+        for (Map.Entry<OperationType, Histogram> entry : byOperation.entrySet()) {
+            if (entry.getValue().getTotalCount() > 0) {
+                printLatency(out, entry.getKey().toString(), entry.getValue());
+            }
+        }
+
+        StringBuilder counts = new StringBuilder("Replies:");
+        for (Map.Entry<OperationResult.Status, LongAdder> entry : statuses.entrySet()) {
+            if (entry.getValue().sum() > 0) {
+                counts.append(' ').append(entry.getKey()).append('=').append(entry.getValue().sum());
+            }
+        }
+        out.println(counts);
+
+        ClientStats stats = client.stats();
+        out.println("Retries: " + stats.retries() + ", replayed by the server (dedupe hits): " + replayed.sum());
+        out.println("Client: " + stats);
+    }
+
+    private static void printLatency(PrintStream out, String title, Histogram histogram) {
+        StringBuilder line = new StringBuilder(title).append(" ms:");
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(" p%s=%.2f", trim(percentile),
+                    histogram.getValueAtPercentile(percentile) / 1e6));
+        }
+        line.append(String.format(" max=%.2f (n=%d)", histogram.getMaxValue() / 1e6, histogram.getTotalCount()));
+        out.println(line);
+    }
+
+    private static String trim(double percentile) {
+        return percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+}
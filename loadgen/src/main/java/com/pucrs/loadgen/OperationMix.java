@@ -0,0 +1,78 @@
+package com.pucrs.loadgen;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.pucrs.interfaces.OperationType;
+
+/**
+ * Weighted choice of operation types, parsed from a list such as
+ * {@code deposit:20,withdraw:20,getBalance:55,createAccount:5}.
+ */
+class OperationMix {
+
+    private final OperationType[] types;
+    private final int[] cumulative;
+    private final int total;
+
+    OperationMix(Map<OperationType, Integer> weights) {
+        this.types = new OperationType[weights.size()];
+        this.cumulative = new int[weights.size()];
+        int sum = 0;
+        int i = 0;
+        for (Map.Entry<OperationType, Integer> entry : weights.entrySet()) {
+            sum += entry.getValue();
+            types[i] = entry.getKey();
+            cumulative[i] = sum;
+            i++;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("Operation mix has no weight");
+        }
+        this.total = sum;
+    }
+
+    static OperationMix parse(String spec) {
+        Map<OperationType, Integer> weights = new EnumMap<>(OperationType.class);
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Bad operation mix entry: " + part);
+            }
+            weights.put(typeOf(pair[0].trim()), Integer.parseInt(pair[1].trim()));
+        }
+        return new OperationMix(weights);
+    }
+
+    OperationType next() {
+        int pick = ThreadLocalRandom.current().nextInt(total);
+        for (int i = 0; i < cumulative.length; i++) {
+            if (pick < cumulative[i]) {
+                return types[i];
+            }
+        }
+        return types[types.length - 1];
+    }
+
+    private static OperationType typeOf(String name) {
+        switch (name) {
+            case "deposit":
+                return OperationType.DEPOSIT;
+            case "withdraw":
+                return OperationType.WITHDRAW;
+            case "getBalance":
+                return OperationType.GET_BALANCE;
+            case "createAccount":
+                return OperationType.CREATE_ACCOUNT;
+            case "deleteAccount":
+                return OperationType.DELETE_ACCOUNT;
+            case "getAccountInfo":
+                return OperationType.GET_ACCOUNT_INFO;
+            case "transfer":
+                return OperationType.TRANSFER;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.pucrs;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks shared by every binding of the server. An account always maps
+ * to the same stripe, so operations on one account are serialized while
+ * unrelated accounts run in parallel.
+ */
+class AccountLocks {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    AccountLocks(int concurrency) {
+        int size = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    ReentrantLock lockFor(long accountId) {
+        return stripes[indexFor(accountId)];
+    }
+
+    ReentrantLock stripe(int index) {
+        return stripes[index];
+    }
+
+    int indexFor(long accountId) {
+        long h = accountId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    int size() {
+        return stripes.length;
+    }
+}
@@ -0,0 +1,80 @@
+package com.pucrs;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Table of account balances behind {@link Server}, in cents. Deposits and
+ * withdrawals are applied atomically by the store itself; callers still
+ * serialize requests for one account (see {@link AccountLocks}) to keep the
+ * request log and the journal in step with the balance.
+ */
+interface AccountStore extends Closeable {
+
+    /**
+     * Returned in place of a balance when the account does not exist.
+     */
+    long ABSENT = Long.MIN_VALUE;
+
+    /**
+     * Returned by {@link #withdraw(long, long)} when the balance is too low.
+     */
+    long INSUFFICIENT_FUNDS = Long.MIN_VALUE + 1;
+
+    boolean contains(long accountId);
+
+    /**
+     * Returns the balance of the account, or {@link #ABSENT}.
+     */
+    long get(long accountId);
+
+    /**
+     * Creates the account with the given balance. Returns false if it already
+     * exists.
+     */
+    boolean create(long accountId, long balance);
+
+    /**
+     * Sets the balance of the account, creating it if needed.
+     */
+    void put(long accountId, long balance);
+
+    /**
+     * Adds {@code amount} to the balance and returns the new balance, or
+     * {@link #ABSENT}.
+     */
+    long deposit(long accountId, long amount);
+
+    /**
+     * Subtracts {@code amount} if the balance covers it and returns the new
+     * balance, or {@link #ABSENT} or {@link #INSUFFICIENT_FUNDS}.
+     */
+    long withdraw(long accountId, long amount);
+
+    /**
+     * Removes the account. Returns false if it did not exist.
+     */
+    boolean remove(long accountId);
+
+    long size();
+
+    void forEach(AccountConsumer consumer);
+
+    /**
+     * Removes every account.
+     */
+    void clear();
+
+    /**
+     * True when the store kept its content from a previous run that was shut
+     * down cleanly, so it is already up to date with the journal.
+     */
+    boolean recoveredCleanly();
+
+    void flush() throws IOException;
+
+    @FunctionalInterface
+    interface AccountConsumer {
+        void accept(long accountId, long balance);
+    }
+}
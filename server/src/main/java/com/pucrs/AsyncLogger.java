@@ -0,0 +1,284 @@
+package com.pucrs;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logger that never blocks the calling thread. Events are copied into a
+ * pre-allocated ring and a background thread formats them, writing one
+ * {@code key=value} line per event to a file and, optionally, a colored line to
+ * the console.
+ *
+ * <p>When the ring is full the event is dropped. Past three quarters full,
+ * events below {@link Level#WARN} are dropped as well so that warnings and
+ * errors still get through. The number of dropped events is logged once the
+ * writer catches up.
+ */
+final class AsyncLogger implements AutoCloseable {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final String RESET = "\u001B[0m";
+    private static final String RED = "\u001B[31m";
+    private static final String YELLOW = "\u001B[33m";
+
+    static final long NO_REQUEST = -1;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+
+    private final Level fileLevel;
+    private final Level consoleLevel;
+    private final Writer file;
+    private final PrintStream console;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final LongAdder dropped = new LongAdder();
+    private long reportedDropped;
+
+    /**
+     * Either output may be null. The logger owns {@code file} and closes it.
+     */
+    AsyncLogger(int capacity, Writer file, Level fileLevel, PrintStream console, Level consoleLevel) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Event[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event(i - size);
+        }
+        this.mask = size - 1;
+
+        this.fileLevel = fileLevel;
+        this.consoleLevel = consoleLevel;
+        this.console = console;
+        this.file = file;
+
+        this.writer = new Thread(this::writeLoop, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Opens {@code path} for appending, creating its directory if needed.
+     */
+    static Writer openFile(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND), 64 * 1024);
+    }
+
+    boolean isEnabled(Level level) {
+        return level.compareTo(fileLevel) >= 0 && file != null
+                || level.compareTo(consoleLevel) >= 0 && console != null;
+    }
+
+    void debug(long requestId, String operation, String text) {
+        log(Level.DEBUG, requestId, operation, text);
+    }
+
+    void info(long requestId, String operation, String text) {
+        log(Level.INFO, requestId, operation, text);
+    }
+
+    void warn(long requestId, String operation, String text) {
+        log(Level.WARN, requestId, operation, text);
+    }
+
+    void error(long requestId, String operation, String text) {
+        log(Level.ERROR, requestId, operation, text);
+    }
+
+    void info(String text) {
+        log(Level.INFO, NO_REQUEST, null, text);
+    }
+
+    void warn(String text) {
+        log(Level.WARN, NO_REQUEST, null, text);
+    }
+
+    void error(String text) {
+        log(Level.ERROR, NO_REQUEST, null, text);
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Queues one event. The strings are stored as given, callers pass constants
+     * where they can so that a disabled or dropped event costs no allocation.
+     */
+    void log(Level level, long requestId, String operation, String text) {
+        if (closed || !isEnabled(level)) {
+            return;
+        }
+
+        long seq;
+        do {
+            seq = claimed.get();
+            long used = seq - consumed;
+            if (used >= ring.length || (used >= ring.length - (ring.length >> 2) && level.compareTo(Level.WARN) < 0)) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Event event = ring[(int) seq & mask];
+        event.timestamp = System.currentTimeMillis();
+        event.level = level;
+        event.requestId = requestId;
+        event.operation = operation;
+        event.text = text;
+        event.published = seq;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            long next = consumed;
+            Event event = ring[(int) next & mask];
+
+            if (event.published != next) {
+                flush();
+                if (closed && claimed.get() == next) {
+                    closeFile();
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            write(event, line);
+            event.operation = null;
+            event.text = null;
+            consumed = next + 1;
+        }
+    }
+
+    private void write(Event event, StringBuilder line) {
+        if (file != null && event.level.compareTo(fileLevel) >= 0) {
+            line.setLength(0);
+            line.append("ts=").append(Instant.ofEpochMilli(event.timestamp))
+                    .append(" level=").append(event.level);
+            if (event.requestId != NO_REQUEST) {
+                line.append(" request=").append(event.requestId);
+            }
+            if (event.operation != null) {
+                line.append(" op=\"").append(event.operation).append('"');
+            }
+            line.append(" msg=\"");
+            appendEscaped(line, event.text);
+            line.append("\"\n");
+            try {
+                file.append(line);
+            } catch (IOException e) {
+                dropped.increment();
+            }
+        }
+
+        if (console != null && event.level.compareTo(consoleLevel) >= 0) {
+            line.setLength(0);
+            if (event.level == Level.ERROR) {
+                line.append(RED);
+            } else if (event.level == Level.WARN) {
+                line.append(YELLOW);
+            }
+            if (event.requestId != NO_REQUEST) {
+                line.append('#').append(event.requestId).append(" - ");
+            }
+            if (event.operation != null) {
+                line.append(event.operation).append(' ');
+            }
+            line.append(event.text);
+            if (event.level.compareTo(Level.WARN) >= 0) {
+                line.append(RESET);
+            }
+            console.println(line);
+        }
+    }
+
+    private void flush() {
+        long lost = dropped.sum();
+        if (lost != reportedDropped) {
+            Event report = new Event(0);
+            report.timestamp = System.currentTimeMillis();
+            report.level = Level.WARN;
+            report.requestId = NO_REQUEST;
+            report.text = "logger dropped " + (lost - reportedDropped) + " events";
+            reportedDropped = lost;
+            write(report, new StringBuilder());
+        }
+        if (file != null) {
+            try {
+                file.flush();
+            } catch (IOException e) {
+                // Nothing sensible to log to.
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing sensible to log to.
+            }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder line, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    private static final class Event {
+        volatile long published;
+        long timestamp;
+        Level level;
+        long requestId;
+        String operation;
+        String text;
+
+        Event(long published) {
+            this.published = published;
+        }
+    }
+}
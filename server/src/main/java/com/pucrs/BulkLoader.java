@@ -0,0 +1,305 @@
+package com.pucrs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+/**
+ * Loads opening balances from a file straight into the account store. The
+ * file is memory-mapped in chunks that are parsed in parallel on a fork/join
+ * pool, and every row becomes a {@link AccountStore#create} on this server,
+ * so an account that already exists, in the store or earlier in the file, is
+ * counted as a duplicate without any remote call.
+ *
+ * <p>A file ending in {@code .csv} holds lines of
+ * {@code accountId,openingBalance}, the balance in currency units with at
+ * most two decimals; a header line is skipped. Any other file holds
+ * big-endian {@code [long accountId][long cents]} records.
+ */
+final class BulkLoader {
+
+    // Bytes per mapped chunk, a multiple of the binary record size.
+    private static final long CHUNK = 16L << 20;
+    private static final int RECORD = 16;
+    // Duplicate account ids kept to show in the result.
+    private static final int SAMPLES = 10;
+
+    private final AccountStore store;
+    private final LongPredicate owns;
+    private final long maxCents;
+    private final int parallelism;
+
+    /**
+     * Loads into {@code store} the accounts {@code owns} accepts, rejecting
+     * balances above {@code maxCents}, on {@code parallelism} threads, at
+     * least one.
+     */
+    BulkLoader(AccountStore store, LongPredicate owns, long maxCents, int parallelism) {
+        this.store = store;
+        this.owns = owns;
+        this.maxCents = maxCents;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    Result load(Path file) throws IOException {
+        long start = System.nanoTime();
+        boolean csv = file.getFileName().toString().endsWith(".csv");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> ranges = csv ? lineRanges(channel, size) : recordRanges(size);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                Counts counts = pool.invoke(new Load(channel, ranges, 0, ranges.size(), csv));
+                if (counts.failure != null) {
+                    throw counts.failure;
+                }
+                return new Result(counts, System.nanoTime() - start);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Splits a text file into chunks that each end right after a newline.
+     */
+    private static List<long[]> lineRanges(FileChannel channel, long size) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long from = 0;
+        while (from < size) {
+            long to = Math.min(size, from + CHUNK);
+            // Move the end past the next newline, or to the end of the file.
+            scan:
+            while (to < size) {
+                buffer.clear();
+                int read = channel.read(buffer, to);
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        to += i + 1;
+                        break scan;
+                    }
+                }
+                to += Math.max(read, 0);
+            }
+            ranges.add(new long[] { from, Math.min(to, size) });
+            from = to;
+        }
+        return ranges;
+    }
+
+    private static List<long[]> recordRanges(long size) throws IOException {
+        if (size % RECORD != 0) {
+            throw new IOException("Not a whole number of " + RECORD + "-byte records: " + size + " bytes");
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (long from = 0; from < size; from += CHUNK) {
+            ranges.add(new long[] { from, Math.min(size, from + CHUNK) });
+        }
+        return ranges;
+    }
+
+    /**
+     * Halves the list of chunks until one is left, then maps and loads it.
+     */
+    private final class Load extends RecursiveTask<Counts> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final List<long[]> ranges;
+        private final int from;
+        private final int to;
+        private final boolean csv;
+
+        Load(FileChannel channel, List<long[]> ranges, int from, int to, boolean csv) {
+            this.channel = channel;
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+            this.csv = csv;
+        }
+
+        @Override
+        protected Counts compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                Load left = new Load(channel, ranges, from, middle, csv);
+                left.fork();
+                Counts counts = new Load(channel, ranges, middle, to, csv).compute();
+                counts.add(left.join());
+                return counts;
+            }
+            Counts counts = new Counts();
+            if (from == to) {
+                return counts;
+            }
+            long[] range = ranges.get(from);
+            try {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+                if (csv) {
+                    parseLines(chunk, range[0] == 0, counts);
+                } else {
+                    parseRecords(chunk, counts);
+                }
+            } catch (IOException e) {
+                counts.failure = e;
+            }
+            return counts;
+        }
+    }
+
+    private void parseRecords(ByteBuffer chunk, Counts counts) {
+        for (int i = 0; i + RECORD <= chunk.limit(); i += RECORD) {
+            counts.rows++;
+            insert(chunk.getLong(i), chunk.getLong(i + 8), counts);
+        }
+    }
+
+    private void parseLines(ByteBuffer chunk, boolean firstChunk, Counts counts) {
+        int limit = chunk.limit();
+        int line = 0;
+        boolean header = firstChunk;
+        while (line < limit) {
+            int end = line;
+            while (end < limit && chunk.get(end) != '\n') {
+                end++;
+            }
+            int last = end;
+            if (last > line && chunk.get(last - 1) == '\r') {
+                last--;
+            }
+            if (last > line) {
+                byte first = chunk.get(line);
+                // A first line not starting with an account id holds the column names.
+                if (!header || (first >= '0' && first <= '9')) {
+                    parseLine(chunk, line, last, counts);
+                }
+                header = false;
+            }
+            line = end + 1;
+        }
+    }
+
+    private void parseLine(ByteBuffer chunk, int from, int to, Counts counts) {
+        counts.rows++;
+        int i = from;
+        long accountId = 0;
+        int digits = 0;
+        for (; i < to && chunk.get(i) >= '0' && chunk.get(i) <= '9'; i++, digits++) {
+            if (accountId > (Long.MAX_VALUE - 9) / 10) {
+                counts.invalid++;
+                return;
+            }
+            accountId = accountId * 10 + (chunk.get(i) - '0');
+        }
+        if (digits == 0 || i == to || chunk.get(i) != ',') {
+            counts.invalid++;
+            return;
+        }
+        i++;
+
+        long cents = 0;
+        digits = 0;
+        for (; i < to && chunk.get(i) >= '0' && chunk.get(i) <= '9'; i++, digits++) {
+            cents = cents * 10 + (chunk.get(i) - '0');
+            if (cents > maxCents) {
+                counts.invalid++;
+                return;
+            }
+        }
+        int decimals = 0;
+        if (i < to && chunk.get(i) == '.') {
+            i++;
+            for (; i < to && decimals < 2 && chunk.get(i) >= '0' && chunk.get(i) <= '9'; i++, decimals++) {
+                cents = cents * 10 + (chunk.get(i) - '0');
+            }
+        }
+        if (digits == 0 || i != to) {
+            counts.invalid++;
+            return;
+        }
+        for (; decimals < 2; decimals++) {
+            cents *= 10;
+        }
+        insert(accountId, cents, counts);
+    }
+
+    private void insert(long accountId, long cents, Counts counts) {
+        if (accountId < 0 || cents < 0 || cents > maxCents) {
+            counts.invalid++;
+        } else if (!owns.test(accountId)) {
+            counts.otherShard++;
+        } else if (store.create(accountId, cents)) {
+            counts.loaded++;
+        } else {
+            if (counts.duplicates < SAMPLES) {
+                counts.samples.add(accountId);
+            }
+            counts.duplicates++;
+        }
+    }
+
+    /**
+     * Row counts of one chunk, then of the whole file as chunks are joined.
+     */
+    private static final class Counts {
+
+        long rows;
+        long loaded;
+        long duplicates;
+        long otherShard;
+        long invalid;
+        final List<Long> samples = new ArrayList<>();
+        IOException failure;
+
+        void add(Counts other) {
+            rows += other.rows;
+            loaded += other.loaded;
+            duplicates += other.duplicates;
+            otherShard += other.otherShard;
+            invalid += other.invalid;
+            for (Long accountId : other.samples) {
+                if (samples.size() < SAMPLES) {
+                    samples.add(accountId);
+                }
+            }
+            if (failure == null) {
+                failure = other.failure;
+            }
+        }
+    }
+
+    /**
+     * What a load did: rows read, accounts created, and rows rejected as
+     * duplicates, for another shard or unparseable.
+     */
+    record Result(long rows, long loaded, long duplicates, long otherShard, long invalid, List<Long> duplicateSamples,
+            long nanos) {
+
+        private Result(Counts counts, long nanos) {
+            this(counts.rows, counts.loaded, counts.duplicates, counts.otherShard, counts.invalid,
+                    List.copyOf(counts.samples), nanos);
+        }
+
+        double rowsPerSecond() {
+            return nanos == 0 ? 0.0 : rows * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows in %d ms (%.0f rows/s): %d loaded, %d duplicates%s, %d for other shards, "
+                    + "%d invalid", rows, TimeUnit.NANOSECONDS.toMillis(nanos), rowsPerSecond(), loaded, duplicates,
+                    duplicateSamples.isEmpty() ? "" : " " + duplicateSamples, otherShard, invalid);
+        }
+    }
+}
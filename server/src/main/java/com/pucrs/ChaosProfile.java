@@ -0,0 +1,280 @@
+package com.pucrs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.pucrs.interfaces.OperationType;
+
+/**
+ * Simulated latency and failures. A profile is a properties file, passed with
+ * {@code -Dserver.chaos}, such as:
+ *
+ * <pre>
+ * seed=42
+ * latency=uniform:0:50
+ * deposit.latency=fixed:15000
+ * processing.failureRate=0.1
+ * response.failureRate=0.1
+ * getBalance.response.failureRate=0
+ * </pre>
+ *
+ * Latencies are in milliseconds: {@code none}, {@code fixed:ms},
+ * {@code uniform:min:max}, {@code exponential:mean} or
+ * {@code normal:mean:stddev}. Operation names are those of the load
+ * generator's mix ({@code deposit}, {@code getBalance}, ...); settings without
+ * a name apply to every operation and to batches.
+ *
+ * <p>Every draw is a hash of the seed, the request id, the attempt number and
+ * the phase, so with the same seed a request meets the same delays and
+ * failures on every run, whatever the thread interleaving. Attempts are
+ * counted per request id until a reply is sent. Without a seed one is picked
+ * at random and logged, so the run can be repeated.
+ *
+ * <p>Without a file the profile is built from {@code -Dserver.errorRate},
+ * {@code -Dserver.maxSleep} and {@code -Dserver.depositSleep}, whose defaults
+ * reproduce the original behaviour.
+ */
+final class ChaosProfile {
+
+    private static final long PROCESSING = 0x5DEECE66DL;
+    private static final long RESPONSE = 0x2545F4914F6CDD1DL;
+    private static final long LATENCY = 0x9E3779B97F4A7C15L;
+    private static final long LATENCY_2 = 0xD1B54A32D192ED03L;
+    private static final int MAX_TRACKED = 1 << 16;
+
+    private final long seed;
+    private final Latency defaultLatency;
+    private final double defaultProcessing;
+    private final double defaultResponse;
+    private final Map<OperationType, Latency> latencies = new EnumMap<>(OperationType.class);
+    private final Map<OperationType, Double> processingRates = new EnumMap<>(OperationType.class);
+    private final Map<OperationType, Double> responseRates = new EnumMap<>(OperationType.class);
+    private final boolean faulty;
+    private final Map<Long, Integer> attempts = new ConcurrentHashMap<>();
+
+    private ChaosProfile(long seed, Properties properties) {
+        this.seed = seed;
+        this.defaultLatency = Latency.parse(properties.getProperty("latency", "none"));
+        this.defaultProcessing = rate(properties, "processing.failureRate", 0);
+        this.defaultResponse = rate(properties, "response.failureRate", 0);
+        boolean anyFailure = defaultProcessing > 0 || defaultResponse > 0;
+        for (OperationType type : OperationType.values()) {
+            String name = nameOf(type);
+            String latency = properties.getProperty(name + ".latency");
+            latencies.put(type, latency == null ? defaultLatency : Latency.parse(latency));
+            processingRates.put(type, rate(properties, name + ".processing.failureRate", defaultProcessing));
+            responseRates.put(type, rate(properties, name + ".response.failureRate", defaultResponse));
+            anyFailure |= processingRates.get(type) > 0 || responseRates.get(type) > 0;
+        }
+        this.faulty = anyFailure;
+    }
+
+    /**
+     * Loads the profile named by {@code -Dserver.chaos}, or builds the default
+     * one.
+     */
+    static ChaosProfile load() throws IOException {
+        Properties properties = new Properties();
+        String file = System.getProperty("server.chaos");
+        if (file != null) {
+            try (Reader reader = Files.newBufferedReader(Path.of(file))) {
+                properties.load(reader);
+            }
+        } else {
+            double errorRate = Double.parseDouble(System.getProperty("server.errorRate", "0.1"));
+            long maxSleep = Long.getLong("server.maxSleep", 50);
+            properties.setProperty("latency", maxSleep > 0 ? "uniform:0:" + maxSleep : "none");
+            properties.setProperty("deposit.latency", "fixed:" + Long.getLong("server.depositSleep", 15000));
+            properties.setProperty("processing.failureRate", String.valueOf(errorRate));
+            properties.setProperty("response.failureRate", String.valueOf(errorRate));
+        }
+        String seed = properties.getProperty("seed");
+        return new ChaosProfile(seed == null ? ThreadLocalRandom.current().nextLong() : Long.parseLong(seed.trim()),
+                properties);
+    }
+
+    long seed() {
+        return seed;
+    }
+
+    /**
+     * Starts a new attempt for {@code requestId} and returns its number,
+     * counting from 1. Attempts are only tracked when failures are enabled,
+     * since without failures there are no retries to tell apart.
+     */
+    int attempt(long requestId) {
+        if (!faulty) {
+            return 1;
+        }
+        if (attempts.size() >= MAX_TRACKED) {
+            // Requests whose client gave up are never completed; drop them all
+            // rather than let them pile up.
+            attempts.clear();
+        }
+        return attempts.merge(requestId, 1, Integer::sum);
+    }
+
+    /**
+     * The reply to {@code requestId} was sent; a later retry counts from 1.
+     */
+    void completed(long requestId) {
+        if (faulty) {
+            attempts.remove(requestId);
+        }
+    }
+
+    /**
+     * Simulated processing time in milliseconds; a null type means a batch.
+     */
+    long latency(OperationType type, long requestId, int attempt) {
+        Latency latency = type == null ? defaultLatency : latencies.get(type);
+        return latency.sample(unit(requestId, attempt, LATENCY), unit(requestId, attempt, LATENCY_2));
+    }
+
+    boolean failProcessing(OperationType type, long requestId, int attempt) {
+        double rate = type == null ? defaultProcessing : processingRates.get(type);
+        return rate > 0 && unit(requestId, attempt, PROCESSING) < rate;
+    }
+
+    boolean failResponse(OperationType type, long requestId, int attempt) {
+        double rate = type == null ? defaultResponse : responseRates.get(type);
+        return rate > 0 && unit(requestId, attempt, RESPONSE) < rate;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("seed=").append(seed)
+                .append(" latency=").append(defaultLatency)
+                .append(" processing.failureRate=").append(defaultProcessing)
+                .append(" response.failureRate=").append(defaultResponse);
+        for (OperationType type : OperationType.values()) {
+            String name = nameOf(type);
+            if (latencies.get(type) != defaultLatency) {
+                text.append(' ').append(name).append(".latency=").append(latencies.get(type));
+            }
+            if (processingRates.get(type) != defaultProcessing) {
+                text.append(' ').append(name).append(".processing.failureRate=").append(processingRates.get(type));
+            }
+            if (responseRates.get(type) != defaultResponse) {
+                text.append(' ').append(name).append(".response.failureRate=").append(responseRates.get(type));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Uniform value in [0, 1) determined by the seed, request, attempt and
+     * phase.
+     */
+    private double unit(long requestId, int attempt, long phase) {
+        long hash = mix(seed ^ mix(requestId + attempt * LATENCY) ^ phase);
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+
+    // SplitMix64 finalizer.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static double rate(Properties properties, String key, double fallback) {
+        String value = properties.getProperty(key);
+        double rate = value == null ? fallback : Double.parseDouble(value.trim());
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException(key + " must be between 0 and 1: " + rate);
+        }
+        return rate;
+    }
+
+    private static String nameOf(OperationType type) {
+        switch (type) {
+            case DEPOSIT:
+                return "deposit";
+            case WITHDRAW:
+                return "withdraw";
+            case GET_BALANCE:
+                return "getBalance";
+            case CREATE_ACCOUNT:
+                return "createAccount";
+            case DELETE_ACCOUNT:
+                return "deleteAccount";
+            case GET_ACCOUNT_INFO:
+                return "getAccountInfo";
+            case TRANSFER:
+                return "transfer";
+            default:
+                throw new IllegalArgumentException("Unknown operation " + type);
+        }
+    }
+
+    /**
+     * Latency distribution, sampled from two independent uniform values.
+     */
+    private static final class Latency {
+
+        private final String spec;
+        private final char kind;
+        private final double a;
+        private final double b;
+
+        private Latency(String spec, char kind, double a, double b) {
+            this.spec = spec;
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static Latency parse(String spec) {
+            String[] parts = spec.trim().split(":");
+            switch (parts[0]) {
+                case "none":
+                    return new Latency(spec, 'n', 0, 0);
+                case "fixed":
+                    return new Latency(spec, 'f', Double.parseDouble(parts[1]), 0);
+                case "uniform":
+                    return new Latency(spec, 'u', Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                case "exponential":
+                    return new Latency(spec, 'e', Double.parseDouble(parts[1]), 0);
+                case "normal":
+                    return new Latency(spec, 'g', Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                default:
+                    throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+            }
+        }
+
+        long sample(double u1, double u2) {
+            double value;
+            switch (kind) {
+                case 'f':
+                    value = a;
+                    break;
+                case 'u':
+                    value = a + u1 * (b - a);
+                    break;
+                case 'e':
+                    value = -a * Math.log(1 - u1);
+                    break;
+                case 'g':
+                    // Box-Muller; 1 - u1 is never 0.
+                    value = a + b * Math.sqrt(-2 * Math.log(1 - u1)) * Math.cos(2 * Math.PI * u2);
+                    break;
+                default:
+                    return 0;
+            }
+            return Math.max(0, (long) value);
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.pucrs;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Flat combining over the account stripes. A request is queued on its
+ * stripe; whichever thread gets the stripe's lock becomes the combiner and
+ * runs every queued request in one pass, handing each its own result, while
+ * the others wait for theirs instead of queueing on the lock. A hot account
+ * then costs one lock handoff per pass rather than one per request.
+ *
+ * <p>The stripe locks are the ones of {@link AccountLocks}, so combined
+ * requests still exclude batches and transfers holding the same stripe.
+ */
+final class FlatCombiner {
+
+    // Requests run per pass before the combiner checks on its own again.
+    private static final int MAX_PASS = 256;
+    // Bounds the wait when the lock is held by a thread that is not combining
+    // and so will not wake us.
+    private static final long PARK_NANOS = 50_000;
+
+    /**
+     * Work run by the combiner while it holds the stripe's lock.
+     */
+    @FunctionalInterface
+    interface Step<T> {
+        T apply() throws RemoteException;
+    }
+
+    private final AccountLocks locks;
+    private final ConcurrentLinkedQueue<Request<?>>[] queues;
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder combined = new LongAdder();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    FlatCombiner(AccountLocks locks) {
+        this.locks = locks;
+        this.queues = new ConcurrentLinkedQueue[locks.size()];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Runs {@code step} under the lock of {@code accountId}'s stripe, either
+     * on this thread or on the thread combining at the time.
+     */
+    <T> T run(long accountId, Step<T> step) throws RemoteException {
+        int stripe = locks.indexFor(accountId);
+        ConcurrentLinkedQueue<Request<?>> queue = queues[stripe];
+        ReentrantLock lock = locks.lockFor(accountId);
+        Request<T> request = new Request<>(step, Thread.currentThread());
+        queue.add(request);
+
+        while (!request.done) {
+            if (lock.tryLock()) {
+                try {
+                    while (!request.done) {
+                        combine(queue);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                // Whoever queued after the last poll may be parked on us.
+                Request<?> next = queue.peek();
+                if (next != null) {
+                    LockSupport.unpark(next.owner);
+                }
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+        return request.result();
+    }
+
+    private void combine(ConcurrentLinkedQueue<Request<?>> queue) {
+        int count = 0;
+        Request<?> request;
+        while (count < MAX_PASS && (request = queue.poll()) != null) {
+            request.run();
+            count++;
+        }
+        if (count > 0) {
+            passes.increment();
+            combined.add(count);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long passCount = passes.sum();
+        long requests = combined.sum();
+        return String.format("combining: requests=%d passes=%d perPass=%.2f", requests, passCount,
+                passCount == 0 ? 0.0 : (double) requests / passCount);
+    }
+
+    private static final class Request<T> {
+
+        private final Step<T> step;
+        private final Thread owner;
+        private T value;
+        private RemoteException failure;
+        private Throwable error;
+        // Publishes value, failure and error to the owner.
+        private volatile boolean done;
+
+        Request(Step<T> step, Thread owner) {
+            this.step = step;
+            this.owner = owner;
+        }
+
+        void run() {
+            try {
+                value = step.apply();
+            } catch (RemoteException e) {
+                failure = e;
+            } catch (Throwable e) {
+                // Even an Error goes back to the owner, so the combiner goes
+                // on with the pass and the owner does not wait forever.
+                error = e;
+            }
+            done = true;
+            LockSupport.unpark(owner);
+        }
+
+        T result() throws RemoteException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (error instanceof RuntimeException e) {
+                throw e;
+            }
+            if (error instanceof Error e) {
+                throw e;
+            }
+            if (error != null) {
+                throw new RemoteException("Request failed", error);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.pucrs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Keeps accounts on the heap in primitive arrays: no boxed keys or values,
+ * and no allocation on deposits, withdrawals or lookups. Nothing survives a
+ * restart; state comes back from the snapshot and the journal.
+ *
+ * <p>The table is split in segments, each an open-addressing table with
+ * linear probing. Balances are updated with compare-and-set under the shared
+ * side of the segment lock; only inserting new keys and resizing take the
+ * exclusive side. Removed accounts leave a tombstone that is dropped on the
+ * next resize.
+ */
+class HeapAccountStore implements AccountStore {
+
+    private static final int SEGMENTS = 64;
+    private static final double MAX_LOAD = 0.75;
+
+    // Value markers, never valid balances.
+    private static final long FREE = Long.MIN_VALUE;
+    private static final long DELETED = Long.MIN_VALUE + 1;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    HeapAccountStore() {
+        this(1 << 16);
+    }
+
+    HeapAccountStore(long expectedAccounts) {
+        int perSegment = (int) Math.min(1 << 30, Math.max(16, expectedAccounts / SEGMENTS));
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    @Override
+    public boolean contains(long accountId) {
+        return get(accountId) != ABSENT;
+    }
+
+    @Override
+    public long get(long accountId) {
+        long hash = mix(accountId);
+        Segment segment = segmentFor(hash);
+
+        long stamp = segment.lock.tryOptimisticRead();
+        long value = segment.table.read(accountId, hash);
+        if (segment.lock.validate(stamp)) {
+            return value;
+        }
+
+        stamp = segment.lock.readLock();
+        try {
+            return segment.table.read(accountId, hash);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean create(long accountId, long balance) {
+        long hash = mix(accountId);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.insert(accountId, hash, balance, false);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void put(long accountId, long balance) {
+        long hash = mix(accountId);
+        Segment segment = segmentFor(hash);
+
+        long stamp = segment.lock.readLock();
+        try {
+            Table table = segment.table;
+            int slot = table.find(accountId, hash);
+            if (slot >= 0 && table.values.get(slot) > DELETED) {
+                table.values.set(slot, balance);
+                return;
+            }
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+
+        stamp = segment.lock.writeLock();
+        try {
+            segment.insert(accountId, hash, balance, true);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long deposit(long accountId, long amount) {
+        long hash = mix(accountId);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            Table table = segment.table;
+            int slot = table.find(accountId, hash);
+            if (slot < 0) {
+                return ABSENT;
+            }
+            while (true) {
+                long current = table.values.get(slot);
+                if (current <= DELETED) {
+                    return ABSENT;
+                }
+                long updated = Math.addExact(current, amount);
+                if (table.values.compareAndSet(slot, current, updated)) {
+                    return updated;
+                }
+            }
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long withdraw(long accountId, long amount) {
+        long hash = mix(accountId);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            Table table = segment.table;
+            int slot = table.find(accountId, hash);
+            if (slot < 0) {
+                return ABSENT;
+            }
+            while (true) {
+                long current = table.values.get(slot);
+                if (current <= DELETED) {
+                    return ABSENT;
+                }
+                if (current < amount) {
+                    return INSUFFICIENT_FUNDS;
+                }
+                if (table.values.compareAndSet(slot, current, current - amount)) {
+                    return current - amount;
+                }
+            }
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(long accountId) {
+        long hash = mix(accountId);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            Table table = segment.table;
+            int slot = table.find(accountId, hash);
+            if (slot < 0 || table.values.get(slot) <= DELETED) {
+                return false;
+            }
+            table.values.set(slot, DELETED);
+            segment.size--;
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(AccountConsumer consumer) {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                Table table = segment.table;
+                for (int slot = 0; slot < table.keys.length; slot++) {
+                    long value = table.values.get(slot);
+                    if (value > DELETED) {
+                        consumer.accept(table.keys[slot], value);
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.table = new Table(segment.table.keys.length);
+                segment.size = 0;
+                segment.used = 0;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    @Override
+    public boolean recoveredCleanly() {
+        return false;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 58)];
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    private static final class Segment {
+
+        final StampedLock lock = new StampedLock();
+        volatile Table table;
+        volatile int size;
+        // Slots holding a key, live or deleted.
+        int used;
+
+        Segment(int expected) {
+            table = new Table(Integer.highestOneBit((int) Math.ceil(expected / MAX_LOAD)) << 1);
+        }
+
+        // Caller holds the write lock.
+        boolean insert(long accountId, long hash, long balance, boolean overwrite) {
+            int slot = table.find(accountId, hash);
+            if (slot >= 0) {
+                long current = table.values.get(slot);
+                if (current > DELETED && !overwrite) {
+                    return false;
+                }
+                if (current == DELETED) {
+                    size++;
+                }
+                table.values.set(slot, balance);
+                return true;
+            }
+
+            if (used + 1 > table.keys.length * MAX_LOAD) {
+                resize();
+            }
+            table.add(accountId, hash, balance);
+            used++;
+            size++;
+            return true;
+        }
+
+        private void resize() {
+            Table old = table;
+            int length = size + 1 > old.keys.length * MAX_LOAD / 2 ? old.keys.length * 2 : old.keys.length;
+            Table resized = new Table(length);
+            for (int slot = 0; slot < old.keys.length; slot++) {
+                long value = old.values.get(slot);
+                if (value > DELETED) {
+                    resized.add(old.keys[slot], mix(old.keys[slot]), value);
+                }
+            }
+            table = resized;
+            used = size;
+        }
+    }
+
+    private static final class Table {
+
+        final long[] keys;
+        final AtomicLongArray values;
+        final int mask;
+
+        Table(int length) {
+            keys = new long[length];
+            values = new AtomicLongArray(length);
+            mask = length - 1;
+            for (int i = 0; i < length; i++) {
+                values.lazySet(i, FREE);
+            }
+        }
+
+        int find(long key, long hash) {
+            int slot = (int) hash & mask;
+            while (true) {
+                long value = values.get(slot);
+                if (value == FREE) {
+                    return -1;
+                }
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        long read(long key, long hash) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return ABSENT;
+            }
+            long value = values.get(slot);
+            return value <= DELETED ? ABSENT : value;
+        }
+
+        void add(long key, long hash, long value) {
+            int slot = (int) hash & mask;
+            while (values.get(slot) != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values.set(slot, value);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.pucrs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded store of processed replies keyed by request id. Entries expire after
+ * a fixed time to live and, when a segment is full, the oldest entry is dropped
+ * first. Keys are kept in primitive arrays (open addressing with linear
+ * probing), so lookups and inserts do not box.
+ */
+class IdempotencyCache<V> {
+
+    private static final int SEGMENTS = 64;
+
+    private final Segment<V>[] segments;
+    private final long ttlMillis;
+    private final int capacity;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    IdempotencyCache(int capacity, long ttlMillis) {
+        int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(this, perSegment);
+        }
+        this.capacity = perSegment * SEGMENTS;
+        this.ttlMillis = ttlMillis;
+    }
+
+    V get(long requestId) {
+        V value = peek(requestId);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Same as {@link #get} without counting a hit or a miss, for a request
+     * whose lookup was already counted.
+     */
+    V peek(long requestId) {
+        return segmentFor(requestId).get(requestId, System.currentTimeMillis() - ttlMillis);
+    }
+
+    void put(long requestId, V value) {
+        put(requestId, value, System.currentTimeMillis());
+    }
+
+    /**
+     * Inserts an entry as if it had been stored at {@code storedAt}; entries
+     * that are already past their time to live are ignored.
+     */
+    void put(long requestId, V value, long storedAt) {
+        long now = System.currentTimeMillis();
+        if (storedAt <= now - ttlMillis) {
+            return;
+        }
+        segmentFor(requestId).put(requestId, value, storedAt, now - ttlMillis);
+    }
+
+    /**
+     * Drops every expired entry. Inserts already do this for their own segment,
+     * this sweeps the segments that have gone quiet.
+     */
+    void evictExpired() {
+        long expiredBefore = System.currentTimeMillis() - ttlMillis;
+        for (Segment<V> segment : segments) {
+            segment.evictExpired(expiredBefore);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long ttlMillis() {
+        return ttlMillis;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    double hitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Entries dropped because their segment was full before they expired. A
+     * non-zero value means retries may no longer be answered from the cache.
+     */
+    long overflowed() {
+        return overflowed.sum();
+    }
+
+    long expired() {
+        return expired.sum();
+    }
+
+    /**
+     * Bytes held by the index arrays, not counting the cached values.
+     */
+    long footprintBytes() {
+        long bytes = 0;
+        for (Segment<V> segment : segments) {
+            bytes += segment.footprintBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Visits every live entry, oldest first within each segment, so a cache
+     * loaded from the visit gets its entries in order. Used to persist the
+     * cache; the view is not atomic across segments.
+     */
+    void forEach(EntryConsumer<V> consumer) {
+        long expiredBefore = System.currentTimeMillis() - ttlMillis;
+        for (Segment<V> segment : segments) {
+            segment.forEach(consumer, expiredBefore);
+        }
+    }
+
+    String stats() {
+        return String.format("requestLog: size=%d/%d hitRatio=%.3f hits=%d misses=%d expired=%d overflowed=%d footprint=%dKB",
+                size(), capacity, hitRatio(), hits(), misses(), expired(), overflowed(), footprintBytes() / 1024);
+    }
+
+    private Segment<V> segmentFor(long requestId) {
+        return segments[(int) (mix(requestId) >>> 58)];
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    @FunctionalInterface
+    interface EntryConsumer<V> {
+        void accept(long requestId, V value, long storedAt);
+    }
+
+    private static final class Segment<V> {
+
+        private final IdempotencyCache<V> owner;
+
+        // Open addressing table, a null value marks a free slot.
+        private final long[] keys;
+        private final long[] storedAt;
+        private final Object[] values;
+        private final int mask;
+
+        // Keys and store times in expiry order, oldest at head. Entries loaded
+        // from a snapshot or the journal can arrive a little out of order, so
+        // an insert walks back from the tail to its place.
+        private final long[] order;
+        private final long[] orderTime;
+        private int head;
+        private int count;
+
+        Segment(IdempotencyCache<V> owner, int capacity) {
+            this.owner = owner;
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            keys = new long[tableSize];
+            storedAt = new long[tableSize];
+            values = new Object[tableSize];
+            mask = tableSize - 1;
+            order = new long[capacity];
+            orderTime = new long[capacity];
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key, long expiredBefore) {
+            int slot = find(key);
+            if (slot < 0 || storedAt[slot] <= expiredBefore) {
+                return null;
+            }
+            return (V) values[slot];
+        }
+
+        synchronized void put(long key, V value, long time, long expiredBefore) {
+            evictExpired(expiredBefore);
+
+            int slot = find(key);
+            if (slot >= 0) {
+                values[slot] = value;
+                return;
+            }
+
+            if (count == order.length) {
+                remove(order[head]);
+                head = (head + 1) % order.length;
+                count--;
+                owner.overflowed.increment();
+            }
+
+            slot = (int) mix(key) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            storedAt[slot] = time;
+            values[slot] = value;
+
+            int position = count;
+            for (; position > 0; position--) {
+                int previous = (head + position - 1) % order.length;
+                if (orderTime[previous] <= time) {
+                    break;
+                }
+                int to = (head + position) % order.length;
+                order[to] = order[previous];
+                orderTime[to] = orderTime[previous];
+            }
+            order[(head + position) % order.length] = key;
+            orderTime[(head + position) % order.length] = time;
+            count++;
+        }
+
+        synchronized void evictExpired(long expiredBefore) {
+            while (count > 0) {
+                if (orderTime[head] > expiredBefore) {
+                    return;
+                }
+                remove(order[head]);
+                head = (head + 1) % order.length;
+                count--;
+                owner.expired.increment();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void forEach(EntryConsumer<V> consumer, long expiredBefore) {
+            for (int i = 0; i < count; i++) {
+                int slot = find(order[(head + i) % order.length]);
+                if (storedAt[slot] > expiredBefore) {
+                    consumer.accept(keys[slot], (V) values[slot], storedAt[slot]);
+                }
+            }
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        long footprintBytes() {
+            return 8L * keys.length + 8L * storedAt.length + 16L * order.length + 4L * values.length;
+        }
+
+        private int find(long key) {
+            int slot = (int) mix(key) & mask;
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        // Backward shift deletion keeps probe chains intact without tombstones.
+        private void remove(long key) {
+            int slot = find(key);
+            if (slot < 0) {
+                return;
+            }
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (values[next] != null) {
+                int home = (int) mix(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    storedAt[hole] = storedAt[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            values[hole] = null;
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package com.pucrs;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of applied mutations. Appends only copy the record into a
+ * memory buffer; a single writer thread flushes whatever accumulated since its
+ * last pass with one write and one fsync, so concurrent requests share the cost
+ * of a disk flush (group commit).
+ *
+ * <p>Each record is framed as {@code [length][crc32][payload]} and carries the
+ * balance after the mutation, so replaying a record twice yields the same
+ * state, plus the status code of the reply. Amounts and balances are in cents.
+ * A transfer is a single record carrying both accounts and both balances, so
+ * replay never sees half of one.
+ * The log is split in numbered segment files; {@link #roll()} starts a new one
+ * so that older segments can be dropped once a snapshot covers them.
+ *
+ * <p>A {@link Listener} sees every batch of records right after it was
+ * written, which is how records are streamed to a backup.
+ */
+class Journal implements Closeable {
+
+    static final byte CREATE_ACCOUNT = 1;
+    static final byte DELETE_ACCOUNT = 2;
+    static final byte DEPOSIT = 3;
+    static final byte WITHDRAW = 4;
+    static final byte TRANSFER = 5;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER = 8;
+    private static final int RECORD_BYTES = 1 + 8 + 8 + 8 + 8 + 8 + 1;
+    // A transfer adds the destination account and its balance after.
+    private static final int TRANSFER_BYTES = RECORD_BYTES + 8 + 8;
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    private final Path dir;
+    private final boolean fsync;
+    private final Thread writer;
+
+    // Owned by the writer thread.
+    private FileChannel channel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasData = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER);
+    private ByteBuffer flushing = ByteBuffer.allocate(INITIAL_BUFFER);
+    // Written under the lock, read without it.
+    private volatile long appendedSeq;
+    private long durableSeq;
+    private IOException failure;
+    private boolean closed;
+
+    // Bytes of pending that still belong to the current segment when a roll was requested.
+    private long segment;
+    private int rollAt = -1;
+    private long rolledSegment;
+    private long rollAtSeq;
+
+    private volatile Listener listener;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens the journal in {@code dir}, appending to its newest segment. Without
+     * {@code fsync} records are only handed to the OS, which survives a crash
+     * of the process but not of the machine.
+     */
+    Journal(Path dir, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.fsync = fsync;
+        Files.createDirectories(dir);
+        List<Long> segments = segments(dir);
+        this.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        this.rolledSegment = segment;
+        this.channel = openSegment(segment);
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Buffers one record and returns its sequence number. The record is not
+     * durable until {@link #awaitDurable(long)} returns for that number.
+     */
+    long append(byte type, long timestamp, long requestId, long accountId, long amount, long balanceAfter,
+            byte status) {
+        return append(type, timestamp, requestId, accountId, amount, balanceAfter, status, 0, 0);
+    }
+
+    /**
+     * Same as the other {@code append}, with the destination of a
+     * {@link #TRANSFER}; the last two values are ignored for other records.
+     */
+    long append(byte type, long timestamp, long requestId, long accountId, long amount, long balanceAfter,
+            byte status, long toAccountId, long toBalanceAfter) {
+        int length = type == TRANSFER ? TRANSFER_BYTES : RECORD_BYTES;
+
+        lock.lock();
+        try {
+            ensureCapacity(HEADER + length);
+            int start = pending.position();
+            pending.position(start + HEADER);
+            pending.put(type)
+                    .putLong(timestamp)
+                    .putLong(requestId)
+                    .putLong(accountId)
+                    .putLong(amount)
+                    .putLong(balanceAfter)
+                    .put(status);
+            if (type == TRANSFER) {
+                pending.putLong(toAccountId).putLong(toBalanceAfter);
+            }
+
+            crc.reset();
+            crc.update(pending.array(), start + HEADER, length);
+            pending.putInt(start, length);
+            pending.putInt(start + 4, (int) crc.getValue());
+
+            long seq = ++appendedSeq;
+            hasData.signal();
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until every record up to {@code seq} has been written and forced to
+     * disk.
+     */
+    void awaitDurable(long seq) throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (closed) {
+                    throw new IOException("Journal is closed");
+                }
+                flushed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long lastSequence() {
+        return appendedSeq;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    long currentSegment() {
+        lock.lock();
+        try {
+            return segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one. Every record appended
+     * before this call ends up in an older segment, every record appended after
+     * it in the returned one or later. Returns once the old segment is on disk.
+     */
+    long roll() throws IOException, InterruptedException {
+        long next;
+        lock.lock();
+        try {
+            while (rollAt >= 0) {
+                flushed.await();
+            }
+            next = segment + 1;
+            segment = next;
+            rollAt = pending.position();
+            rollAtSeq = appendedSeq;
+            hasData.signal();
+
+            while (rolledSegment < next) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (closed) {
+                    throw new IOException("Journal is closed");
+                }
+                flushed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return next;
+    }
+
+    /**
+     * Deletes every segment numbered below {@code segment}.
+     */
+    void deleteSegmentsBefore(long segment) throws IOException {
+        for (long number : segments(dir)) {
+            if (number < segment) {
+                Files.deleteIfExists(segmentFile(dir, number));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            hasData.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long target;
+            int split;
+            long splitSeq;
+            long nextSegment;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && rollAt < 0 && !closed) {
+                    hasData.awaitUninterruptibly();
+                }
+                if (pending.position() == 0 && rollAt < 0) {
+                    flushed.signalAll();
+                    return;
+                }
+                ByteBuffer swap = flushing;
+                flushing = pending;
+                pending = swap;
+                pending.clear();
+                target = appendedSeq;
+                split = rollAt;
+                splitSeq = rollAtSeq;
+                nextSegment = segment;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            Listener listener = this.listener;
+            try {
+                flushing.flip();
+                if (split >= 0) {
+                    int end = flushing.limit();
+                    flushing.limit(split);
+                    write(flushing);
+                    if (listener != null && split > 0) {
+                        listener.written(nextSegment - 1, flushing.duplicate().flip(), splitSeq);
+                    }
+                    channel.close();
+                    channel = openSegment(nextSegment);
+                    flushing.limit(end);
+                }
+                int start = flushing.position();
+                write(flushing);
+                if (listener != null && flushing.position() > start) {
+                    listener.written(nextSegment, flushing.duplicate().position(start), target);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            flushing.clear();
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSeq = target;
+                    if (split >= 0) {
+                        rolledSegment = nextSegment;
+                        rollAt = -1;
+                    }
+                }
+                flushed.signalAll();
+                if (error != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (fsync) {
+            channel.force(false);
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentFile(dir, number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (pending.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+        pending.flip();
+        larger.put(pending);
+        pending = larger;
+    }
+
+    static Path segmentFile(Path dir, long number) {
+        return dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Numbers of the segments present in {@code dir}, oldest first.
+     */
+    static List<Long> segments(Path dir) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return numbers;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> numbers.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Replays, in order, every segment of {@code dir} numbered {@code fromSegment}
+     * or above. Returns the number of records read.
+     */
+    static long replay(Path dir, long fromSegment, RecordHandler handler) throws IOException {
+        long records = 0;
+        for (long number : segments(dir)) {
+            if (number >= fromSegment) {
+                records += replay(segmentFile(dir, number), handler);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reads every intact record of {@code file} in order. A torn or corrupt tail,
+     * left by a crash in the middle of a write, is cut off so new records are
+     * appended right after the last good one. Returns the number of records read.
+     */
+    static long replay(Path file, RecordHandler handler) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        long records = 0;
+        long validEnd = 0;
+        CRC32 crc = new CRC32();
+
+        try (InputStream stream = Files.newInputStream(file);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream, INITIAL_BUFFER))) {
+            byte[] payload = new byte[RECORD_BYTES];
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > 1 << 20) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[length];
+                    }
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                decode(ByteBuffer.wrap(payload, 0, length), handler);
+
+                validEnd += HEADER + length;
+                records++;
+            }
+        }
+
+        if (validEnd < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reads the framed records of {@code frames}, as handed to a
+     * {@link Listener}, and returns how many there were.
+     */
+    static int replay(ByteBuffer frames, RecordHandler handler) throws IOException {
+        CRC32 crc = new CRC32();
+        int records = 0;
+        while (frames.hasRemaining()) {
+            int length = frames.getInt();
+            int checksum = frames.getInt();
+            if (length < 0 || length > frames.remaining()) {
+                throw new IOException("Truncated journal record");
+            }
+            ByteBuffer payload = frames.slice(frames.position(), length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Corrupt journal record");
+            }
+            decode(payload, handler);
+            frames.position(frames.position() + length);
+            records++;
+        }
+        return records;
+    }
+
+    private static void decode(ByteBuffer record, RecordHandler handler) {
+        byte type = record.get();
+        long timestamp = record.getLong();
+        long requestId = record.getLong();
+        long accountId = record.getLong();
+        long amount = record.getLong();
+        long balanceAfter = record.getLong();
+        byte status = record.get();
+        long toAccountId = 0;
+        long toBalanceAfter = 0;
+        if (type == TRANSFER) {
+            toAccountId = record.getLong();
+            toBalanceAfter = record.getLong();
+        }
+
+        handler.apply(type, timestamp, requestId, accountId, amount, balanceAfter, status, toAccountId,
+                toBalanceAfter);
+    }
+
+    /**
+     * Sees each batch of framed records once it is written: {@code frames}
+     * holds whole records of {@code segment}, the last one numbered
+     * {@code lastSeq}. Runs on the writer thread and must not keep the buffer.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void written(long segment, ByteBuffer frames, long lastSeq);
+    }
+
+    /**
+     * Sees one record; {@code toAccountId} and {@code toBalanceAfter} are only
+     * set for a {@link #TRANSFER}.
+     */
+    @FunctionalInterface
+    interface RecordHandler {
+        void apply(byte type, long timestamp, long requestId, long accountId, long amount, long balanceAfter,
+                byte status, long toAccountId, long toBalanceAfter);
+    }
+}
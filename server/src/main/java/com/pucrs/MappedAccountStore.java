@@ -0,0 +1,484 @@
+package com.pucrs;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps accounts in a memory-mapped file of fixed-size records, so the table
+ * lives outside the heap and survives restarts through the page cache.
+ *
+ * <p>The record array is itself an open-addressing hash table (linear
+ * probing) keyed by account id. Each 32 byte record holds
+ * {@code [accountId][balance in cents][version][status]}. Balances are updated
+ * with compare-and-set directly on the mapped memory under the shared side of
+ * the table lock; creating and removing accounts, and growing the file, take
+ * the exclusive side.
+ */
+class MappedAccountStore implements AccountStore {
+
+    private static final int MAGIC = 0x41434354;
+    private static final int FORMAT = 2;
+    private static final int HEADER_BYTES = 4096;
+    private static final int RECORD_BYTES = 32;
+    private static final int REGION_SHIFT = 25;
+    private static final int REGION_RECORDS = 1 << REGION_SHIFT;
+    private static final double MAX_LOAD = 0.7;
+    // Bytes of a record spilled to disk while growing, and of the buffer used.
+    private static final int SPILL_RECORD = 24;
+    private static final int SPILL_BUFFER = SPILL_RECORD << 12;
+    // Records copied per lock hold when walking the table.
+    private static final int WALK_BLOCK = 4096;
+
+    private static final int OFFSET_ID = 0;
+    private static final int OFFSET_BALANCE = 8;
+    private static final int OFFSET_VERSION = 16;
+    private static final int OFFSET_STATUS = 24;
+
+    private static final int FREE = 0;
+    private static final int ACTIVE = 1;
+    private static final int DELETED = 2;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_FORMAT = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_TOMBSTONES = 24;
+    private static final int HEADER_CLEAN = 32;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path file;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final boolean recoveredCleanly;
+
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] regions;
+    private long capacity;
+    private long size;
+    private long tombstones;
+    // Times the table was rehashed, so a walk knows records have moved.
+    private long resizes;
+
+    MappedAccountStore(Path file, long initialCapacity) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+
+        boolean exists = Files.exists(file) && Files.size(file) >= HEADER_BYTES;
+        long requested = Long.highestOneBit(Math.max(2, initialCapacity - 1)) << 1;
+        open(file, exists ? -1 : requested);
+
+        recoveredCleanly = exists && header.getInt(HEADER_CLEAN) == 1;
+        header.putInt(HEADER_CLEAN, 0);
+        header.force();
+    }
+
+    @Override
+    public boolean contains(long accountId) {
+        lock.readLock().lock();
+        try {
+            return find(accountId) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long get(long accountId) {
+        lock.readLock().lock();
+        try {
+            long slot = find(accountId);
+            return slot < 0 ? ABSENT : (long) LONGS.getVolatile(region(slot), offset(slot) + OFFSET_BALANCE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean create(long accountId, long balance) {
+        lock.writeLock().lock();
+        try {
+            if (find(accountId) >= 0) {
+                return false;
+            }
+            insert(accountId, balance, 0);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(long accountId, long balance) {
+        lock.readLock().lock();
+        try {
+            long slot = find(accountId);
+            if (slot >= 0) {
+                update(slot, balance);
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            long slot = find(accountId);
+            if (slot >= 0) {
+                update(slot, balance);
+            } else {
+                insert(accountId, balance, 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long deposit(long accountId, long amount) {
+        lock.readLock().lock();
+        try {
+            long slot = find(accountId);
+            if (slot < 0) {
+                return ABSENT;
+            }
+            MappedByteBuffer region = region(slot);
+            int offset = offset(slot);
+            while (true) {
+                long current = (long) LONGS.getVolatile(region, offset + OFFSET_BALANCE);
+                long updated = Math.addExact(current, amount);
+                if (LONGS.compareAndSet(region, offset + OFFSET_BALANCE, current, updated)) {
+                    LONGS.getAndAdd(region, offset + OFFSET_VERSION, 1L);
+                    return updated;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long withdraw(long accountId, long amount) {
+        lock.readLock().lock();
+        try {
+            long slot = find(accountId);
+            if (slot < 0) {
+                return ABSENT;
+            }
+            MappedByteBuffer region = region(slot);
+            int offset = offset(slot);
+            while (true) {
+                long current = (long) LONGS.getVolatile(region, offset + OFFSET_BALANCE);
+                if (current < amount) {
+                    return INSUFFICIENT_FUNDS;
+                }
+                if (LONGS.compareAndSet(region, offset + OFFSET_BALANCE, current, current - amount)) {
+                    LONGS.getAndAdd(region, offset + OFFSET_VERSION, 1L);
+                    return current - amount;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(long accountId) {
+        lock.writeLock().lock();
+        try {
+            long slot = find(accountId);
+            if (slot < 0) {
+                return false;
+            }
+            MappedByteBuffer region = region(slot);
+            int offset = offset(slot);
+            region.putLong(offset + OFFSET_VERSION, region.getLong(offset + OFFSET_VERSION) + 1);
+            region.putInt(offset + OFFSET_STATUS, DELETED);
+            size--;
+            tombstones++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the table a block of records at a time under the shared lock and
+     * hands each copy to {@code consumer} after releasing it, so a long walk,
+     * such as a snapshot streamed to a backup, holds off creates and removes
+     * for one block at most. Records only move when the table grows; the walk
+     * then starts over, and accounts already handed over are seen again.
+     */
+    @Override
+    public void forEach(AccountConsumer consumer) {
+        long[] ids = new long[WALK_BLOCK];
+        long[] balances = new long[WALK_BLOCK];
+        long walked = -1;
+        long slot = 0;
+        boolean last;
+        do {
+            int count = 0;
+            lock.readLock().lock();
+            try {
+                if (walked != resizes) {
+                    walked = resizes;
+                    slot = 0;
+                }
+                long end = Math.min(capacity, slot + WALK_BLOCK);
+                for (; slot < end; slot++) {
+                    MappedByteBuffer region = region(slot);
+                    int offset = offset(slot);
+                    if (region.getInt(offset + OFFSET_STATUS) == ACTIVE) {
+                        ids[count] = region.getLong(offset + OFFSET_ID);
+                        balances[count++] = (long) LONGS.getVolatile(region, offset + OFFSET_BALANCE);
+                    }
+                }
+                last = slot >= capacity;
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (int i = 0; i < count; i++) {
+                consumer.accept(ids[i], balances[i]);
+            }
+        } while (!last);
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (long slot = 0; slot < capacity; slot++) {
+                region(slot).putInt(offset(slot) + OFFSET_STATUS, FREE);
+            }
+            size = 0;
+            tombstones = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean recoveredCleanly() {
+        return recoveredCleanly;
+    }
+
+    @Override
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+            writeCounters();
+            header.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces everything to disk and marks the file as cleanly closed, so the
+     * next run can use it as is.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+            writeCounters();
+            header.putInt(HEADER_CLEAN, 1);
+            header.force();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void open(Path path, long newCapacity) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+
+        if (newCapacity < 0) {
+            if (header.getInt(HEADER_MAGIC) != MAGIC) {
+                throw new IOException("Not an account store: " + path);
+            }
+            if (header.getInt(HEADER_FORMAT) != FORMAT) {
+                throw new IOException("Unsupported account store format " + header.getInt(HEADER_FORMAT) + ": " + path);
+            }
+            capacity = header.getLong(HEADER_CAPACITY);
+            size = header.getLong(HEADER_SIZE);
+            tombstones = header.getLong(HEADER_TOMBSTONES);
+        } else {
+            capacity = newCapacity;
+            size = 0;
+            tombstones = 0;
+            header.putInt(HEADER_MAGIC, MAGIC);
+            header.putInt(HEADER_FORMAT, FORMAT);
+            header.putLong(HEADER_CAPACITY, capacity);
+            writeCounters();
+        }
+
+        map();
+    }
+
+    // Maps the record regions for the current capacity, extending the file as needed.
+    private void map() throws IOException {
+        int count = (int) ((capacity + REGION_RECORDS - 1) >>> REGION_SHIFT);
+        regions = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long records = Math.min(REGION_RECORDS, capacity - ((long) i << REGION_SHIFT));
+            long position = HEADER_BYTES + ((long) i << REGION_SHIFT) * RECORD_BYTES;
+            regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, records * RECORD_BYTES);
+        }
+    }
+
+    private void writeCounters() {
+        header.putLong(HEADER_SIZE, size);
+        header.putLong(HEADER_TOMBSTONES, tombstones);
+    }
+
+    private long find(long accountId) {
+        long slot = home(accountId);
+        while (true) {
+            MappedByteBuffer region = region(slot);
+            int offset = offset(slot);
+            int status = region.getInt(offset + OFFSET_STATUS);
+            if (status == FREE) {
+                return -1;
+            }
+            if (status == ACTIVE && region.getLong(offset + OFFSET_ID) == accountId) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private void update(long slot, long balance) {
+        MappedByteBuffer region = region(slot);
+        int offset = offset(slot);
+        LONGS.setVolatile(region, offset + OFFSET_BALANCE, balance);
+        LONGS.getAndAdd(region, offset + OFFSET_VERSION, 1L);
+    }
+
+    // Caller holds the write lock and has checked that the account is absent.
+    private void insert(long accountId, long balance, long version) {
+        if (size + tombstones + 1 > capacity * MAX_LOAD) {
+            grow();
+        }
+
+        long slot = home(accountId);
+        while (true) {
+            MappedByteBuffer region = region(slot);
+            int offset = offset(slot);
+            int status = region.getInt(offset + OFFSET_STATUS);
+            if (status != ACTIVE) {
+                if (status == DELETED) {
+                    tombstones--;
+                }
+                region.putLong(offset + OFFSET_ID, accountId);
+                region.putLong(offset + OFFSET_BALANCE, balance);
+                region.putLong(offset + OFFSET_VERSION, version);
+                region.putInt(offset + OFFSET_STATUS, ACTIVE);
+                size++;
+                return;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    /**
+     * Rehashes every live record into a table twice as large (or the same
+     * size when most of the load is tombstones). The live records are spilled
+     * to a side file, the table is cleared and extended in place and the
+     * records are inserted again, so the file is never replaced while it is
+     * mapped, which Windows does not allow. A crash half way leaves the file
+     * marked as not cleanly closed, and the server rebuilds it from the
+     * snapshot and journal.
+     */
+    private void grow() {
+        long newCapacity = size * 2 > capacity * MAX_LOAD ? capacity * 2 : capacity;
+        Path spill = file.resolveSibling(file.getFileName() + ".grow");
+
+        try (FileChannel records = FileChannel.open(spill, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SPILL_BUFFER);
+            for (long slot = 0; slot < capacity; slot++) {
+                MappedByteBuffer region = region(slot);
+                int offset = offset(slot);
+                if (region.getInt(offset + OFFSET_STATUS) == ACTIVE) {
+                    if (buffer.remaining() < SPILL_RECORD) {
+                        writeFully(records, buffer.flip());
+                        buffer.clear();
+                    }
+                    buffer.putLong(region.getLong(offset + OFFSET_ID));
+                    buffer.putLong(region.getLong(offset + OFFSET_BALANCE));
+                    buffer.putLong(region.getLong(offset + OFFSET_VERSION));
+                }
+                region.putInt(offset + OFFSET_STATUS, FREE);
+            }
+            writeFully(records, buffer.flip());
+
+            capacity = newCapacity;
+            size = 0;
+            tombstones = 0;
+            resizes++;
+            header.putLong(HEADER_CAPACITY, capacity);
+            map();
+
+            records.position(0);
+            buffer.clear();
+            while (records.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                while (buffer.remaining() >= SPILL_RECORD) {
+                    insert(buffer.getLong(), buffer.getLong(), buffer.getLong());
+                }
+                buffer.compact();
+            }
+            writeCounters();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not grow account store " + file, e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private long home(long accountId) {
+        long h = accountId * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 29)) & (capacity - 1);
+    }
+
+    private MappedByteBuffer region(long slot) {
+        return regions[(int) (slot >>> REGION_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & (REGION_RECORDS - 1)) * RECORD_BYTES;
+    }
+}
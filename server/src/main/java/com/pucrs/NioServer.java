@@ -0,0 +1,369 @@
+package com.pucrs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.pucrs.interfaces.BatchOperation;
+import com.pucrs.interfaces.BinaryProtocol;
+import com.pucrs.interfaces.IAtmRemote;
+import com.pucrs.interfaces.IBranchRemote;
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.OperationType;
+
+/**
+ * Serves the ATM and branch operations over plain TCP using
+ * {@link BinaryProtocol} frames. A single selector thread accepts connections,
+ * reads frames and writes replies; every decoded request runs on
+ * {@code executor}, since operations block on the simulated delays and on the
+ * journal flush. Replies are written as they complete, so a connection may have
+ * many requests in flight. Frames the executor refuses are answered at once
+ * with {@link OperationResult.Status#BUSY} results.
+ */
+class NioServer implements Closeable {
+
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int WRITE_BUFFER = 64 * 1024;
+
+    private final IAtmRemote atm;
+    private final IBranchRemote branch;
+    private final RequestExecutor executor;
+    private final AsyncLogger log;
+
+    private final Selector selector;
+    private final ServerSocketChannel acceptor;
+    private final Thread thread;
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    NioServer(int port, IAtmRemote atm, IBranchRemote branch, RequestExecutor executor, AsyncLogger log)
+            throws IOException {
+        this.atm = atm;
+        this.branch = branch;
+        this.executor = executor;
+        this.log = log;
+        this.selector = Selector.open();
+        this.acceptor = ServerSocketChannel.open();
+        acceptor.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        acceptor.bind(new InetSocketAddress(port));
+        acceptor.configureBlocking(false);
+        acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::selectLoop, "nio-selector");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void selectLoop() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    connection.flush();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection owner = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        owner.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        owner.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("NIO transport stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+                acceptor.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = acceptor.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Decodes and runs one request frame, returning the encoded reply frame.
+     */
+    private ByteBuffer handle(ByteBuffer frame, boolean admitted) {
+        long correlation = frame.getLong();
+        byte opcode = frame.get();
+        try {
+            if (opcode == BinaryProtocol.BATCH || opcode == BinaryProtocol.BRANCH_BATCH) {
+                List<BatchOperation> operations = BinaryProtocol.readOperations(frame);
+                List<OperationResult> results;
+                if (!admitted) {
+                    results = new ArrayList<>(operations.size());
+                    for (BatchOperation op : operations) {
+                        results.add(busy(op.getType(), op.getAccountId()));
+                    }
+                } else if (opcode == BinaryProtocol.BATCH) {
+                    results = atm.executeBatch(operations);
+                } else {
+                    results = branch.executeBranchBatch(operations);
+                }
+                if (results == null) {
+                    return reply(correlation, BinaryProtocol.REPLY_EMPTY, 0);
+                }
+                ByteBuffer reply = reply(correlation, BinaryProtocol.REPLY_RESULTS,
+                        4 + results.size() * BinaryProtocol.RESULT_BYTES);
+                reply.putInt(results.size());
+                for (OperationResult result : results) {
+                    BinaryProtocol.writeResult(reply, result);
+                }
+                return reply;
+            }
+
+            long requestId = frame.getLong();
+            long accountId = frame.getLong();
+            Double amount = BinaryProtocol.amount(frame.getDouble());
+            OperationType type = BinaryProtocol.operation(opcode);
+            long toAccountId = type == OperationType.TRANSFER ? frame.getLong() : 0;
+            OperationResult result = admitted
+                    ? execute(type, requestId, accountId, amount, toAccountId)
+                    : busy(type, accountId);
+            if (result == null) {
+                return reply(correlation, BinaryProtocol.REPLY_EMPTY, 0);
+            }
+            ByteBuffer reply = reply(correlation, BinaryProtocol.REPLY_RESULT, BinaryProtocol.RESULT_BYTES);
+            BinaryProtocol.writeResult(reply, result);
+            return reply;
+        } catch (Exception e) {
+            String message = String.valueOf(e.getMessage());
+            ByteBuffer reply = reply(correlation, BinaryProtocol.REPLY_ERROR, 4 + message.length() * 3);
+            BinaryProtocol.writeError(reply, message);
+            return reply;
+        }
+    }
+
+    private OperationResult execute(OperationType type, long requestId, long accountId, Double amount,
+            long toAccountId) throws Exception {
+        return switch (type) {
+            case DEPOSIT -> atm.deposit(requestId, accountId, amount);
+            case WITHDRAW -> atm.withdraw(requestId, accountId, amount);
+            case GET_BALANCE -> atm.getBalance(requestId, accountId);
+            case CREATE_ACCOUNT -> branch.createAccount(requestId, accountId);
+            case DELETE_ACCOUNT -> branch.deleteAccount(requestId, accountId);
+            case GET_ACCOUNT_INFO -> branch.getAccountInfo(requestId, accountId);
+            case TRANSFER -> atm.transfer(requestId, accountId, toAccountId, amount);
+        };
+    }
+
+    private static OperationResult busy(OperationType type, long accountId) {
+        return new OperationResult(OperationResult.Status.BUSY, type, accountId, 0, 0);
+    }
+
+    /**
+     * Allocates a reply frame with room for {@code payload} bytes, with its
+     * length prefix left to {@link Connection#send(ByteBuffer)}.
+     */
+    private static ByteBuffer reply(long correlation, byte kind, int payload) {
+        ByteBuffer reply = ByteBuffer.allocate(4 + 8 + 1 + payload);
+        reply.position(4);
+        return reply.putLong(correlation).put(kind);
+    }
+
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER);
+        private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+        private ByteBuffer large;
+        private ByteBuffer partial;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            out.flip();
+        }
+
+        /**
+         * Reads whatever is available and dispatches every complete frame.
+         * Frames larger than the direct buffer are gathered in a heap buffer.
+         */
+        void read() {
+            try {
+                if (large != null) {
+                    if (channel.read(large) < 0) {
+                        closeQuietly(key);
+                        return;
+                    }
+                    if (!large.hasRemaining()) {
+                        large.flip();
+                        dispatch(large);
+                        large = null;
+                    }
+                    return;
+                }
+                if (channel.read(in) < 0) {
+                    closeQuietly(key);
+                    return;
+                }
+            } catch (IOException e) {
+                closeQuietly(key);
+                return;
+            }
+
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 9 || length > BinaryProtocol.MAX_FRAME) {
+                    log.warn("Closing connection with bad frame length " + length);
+                    closeQuietly(key);
+                    return;
+                }
+                if (in.remaining() - 4 < length) {
+                    if (length + 4 > in.capacity()) {
+                        in.getInt();
+                        large = ByteBuffer.allocate(length);
+                        large.put(in);
+                        in.clear();
+                        return;
+                    }
+                    break;
+                }
+                in.getInt();
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                int limit = in.limit();
+                in.limit(in.position() + length);
+                frame.put(in).flip();
+                in.limit(limit);
+                dispatch(frame);
+            }
+            in.compact();
+        }
+
+        private void dispatch(ByteBuffer frame) {
+            try {
+                if (!executor.submit(() -> send(handle(frame, true)))) {
+                    send(handle(frame, false));
+                }
+            } catch (RejectedExecutionException e) {
+                ByteBuffer reply = reply(frame.getLong(0), BinaryProtocol.REPLY_ERROR, 64);
+                BinaryProtocol.writeError(reply, "Server is shutting down");
+                send(reply);
+            }
+        }
+
+        /**
+         * Queues a reply from any thread and lets the selector write it.
+         */
+        void send(ByteBuffer reply) {
+            reply.putInt(0, reply.position() - 4).flip();
+            replies.add(reply);
+            ready.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Copies queued replies into the direct buffer and writes as much as the
+         * socket takes, waiting for OP_WRITE when it is full.
+         */
+        void flush() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (!out.hasRemaining()) {
+                        out.clear();
+                        fill();
+                        out.flip();
+                        if (!out.hasRemaining()) {
+                            break;
+                        }
+                    }
+                    channel.write(out);
+                    if (out.hasRemaining()) {
+                        break;
+                    }
+                }
+                key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+            } catch (IOException e) {
+                closeQuietly(key);
+            }
+        }
+
+        private void fill() {
+            ByteBuffer reply = partial != null ? partial : replies.poll();
+            partial = null;
+            while (reply != null) {
+                if (reply.remaining() > out.remaining()) {
+                    if (out.position() == 0) {
+                        int limit = reply.limit();
+                        reply.limit(reply.position() + out.remaining());
+                        out.put(reply);
+                        reply.limit(limit);
+                    }
+                    partial = reply;
+                    return;
+                }
+                out.put(reply);
+                reply = replies.poll();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.pucrs;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backup side of replication: follows a {@link ReplicationPrimary}, loading
+ * its snapshot and then applying its journal batches, and reconnects when the
+ * stream breaks. Once the backup has been in sync at least once and the
+ * primary has been unreachable for {@code takeoverMillis}, it asks to take
+ * over; if that fails, for example because the primary still holds the
+ * registry port, it keeps trying to reconnect.
+ *
+ * <p>A read replica follows the same way but never takes over. It announces
+ * the port of its read-only registry when it connects, so the primary can
+ * list it to clients.
+ */
+final class ReplicationBackup implements Runnable {
+
+    private static final long RETRY_MILLIS = 500;
+
+    /**
+     * Applies what the primary sends to this server's state.
+     */
+    interface Applier {
+
+        /**
+         * Replaces the state with the snapshot read from {@code in}.
+         */
+        void load(InputStream in) throws IOException;
+
+        /**
+         * Applies and journals a batch of records, returning once they are
+         * durable.
+         */
+        void apply(ByteBuffer frames) throws IOException, InterruptedException;
+
+        /**
+         * Starts serving clients, in a run epoch above {@code primaryEpoch},
+         * the one of the primary it followed. Returns false if this server
+         * cannot take over yet.
+         */
+        boolean takeOver(long primaryEpoch);
+    }
+
+    private final String host;
+    private final int port;
+    private final Applier applier;
+    private final AsyncLogger log;
+    private final long takeoverMillis;
+    private final int readPort;
+
+    private volatile long appliedSeq = -1;
+    private volatile long primaryEpoch;
+    private volatile long appliedVersion = -1;
+    private volatile boolean synced;
+    private volatile long lastContact;
+
+    /**
+     * Follows the primary at {@code host:port}. A {@code readPort} above 0
+     * makes this a read replica serving on that port, which never takes over.
+     */
+    ReplicationBackup(String host, int port, Applier applier, AsyncLogger log, long takeoverMillis, int readPort) {
+        this.host = host;
+        this.port = port;
+        this.applier = applier;
+        this.log = log;
+        this.takeoverMillis = takeoverMillis;
+        this.readPort = readPort;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "replication-backup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Version, in the primary's numbering, of the last record applied, or -1
+     * before the first snapshot was loaded. See
+     * {@link ReplicationPrimary#version}.
+     */
+    long appliedVersion() {
+        return appliedVersion;
+    }
+
+    /**
+     * Whether the state is complete and the primary was heard from within the
+     * last {@code maxSilenceMillis}, so it is at most that far behind.
+     */
+    boolean isCurrent(long maxSilenceMillis) {
+        return synced && System.nanoTime() - lastContact <= TimeUnit.MILLISECONDS.toNanos(maxSilenceMillis);
+    }
+
+    @Override
+    public void run() {
+        lastContact = System.nanoTime();
+        while (true) {
+            try {
+                follow();
+            } catch (ConnectException e) {
+                log.debug(AsyncLogger.NO_REQUEST, "replication", "primary unreachable: " + e.getMessage());
+            } catch (EOFException e) {
+                log.warn("Primary " + host + ":" + port + " closed the replication stream");
+            } catch (IOException e) {
+                log.warn("Replication from " + host + ":" + port + " interrupted: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (readPort == 0 && synced && System.nanoTime() - lastContact >= TimeUnit.MILLISECONDS.toNanos(takeoverMillis)) {
+                log.warn("Primary " + host + ":" + port + " lost for " + takeoverMillis + " ms, taking over");
+                if (applier.takeOver(primaryEpoch)) {
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void follow() throws IOException, InterruptedException {
+        try (Socket socket = new Socket()) {
+            // Heartbeats arrive every second; silence this long means the primary is gone.
+            int silenceMillis = (int) Math.max(takeoverMillis, 2 * ReplicationPrimary.HEARTBEAT_MILLIS);
+            socket.connect(new InetSocketAddress(host, port), silenceMillis);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(silenceMillis);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(readPort);
+            out.flush();
+
+            lastContact = System.nanoTime();
+            if (in.readInt() != ReplicationPrimary.MAGIC) {
+                throw new IOException("Not a replication stream");
+            }
+            long start = System.nanoTime();
+            // The primary may have restarted, numbering its records from 1 again.
+            synced = false;
+            appliedVersion = -1;
+            appliedSeq = -1;
+            primaryEpoch = in.readLong();
+            applier.load(in);
+            log.info("Loaded snapshot from primary " + host + ":" + port + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (SocketTimeoutException e) {
+                    throw new IOException("No heartbeat from primary", e);
+                }
+                long lastSeq = in.readLong();
+                lastContact = System.nanoTime();
+                if (length > 0) {
+                    if (buffer.length < length) {
+                        buffer = new byte[Math.max(length, buffer.length * 2)];
+                    }
+                    in.readFully(buffer, 0, length);
+                    applier.apply(ByteBuffer.wrap(buffer, 0, length));
+                }
+                appliedSeq = Math.max(appliedSeq, lastSeq);
+                appliedVersion = ReplicationPrimary.version(primaryEpoch, appliedSeq);
+                synced = true;
+                // Acknowledge once per burst: only when nothing else is waiting.
+                if (in.available() == 0) {
+                    out.writeLong(appliedSeq);
+                    out.flush();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.pucrs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Primary side of replication. Each backup that connects first receives a
+ * snapshot, then every journal batch written after it, in the order the
+ * journal wrote them. Batches are the journal's group commits, so a busy
+ * server sends few large messages, and they are streamed without waiting for
+ * acknowledgements; the backup acknowledges the last record it applied.
+ *
+ * <p>Protocol, all big-endian: the backup opens with {@code [int readPort]},
+ * 0 unless it is a read replica; the primary sends {@code [int MAGIC]}, its run
+ * epoch as {@code [long epoch]} and a snapshot, then chunks of {@code [int length][long lastSeq][records]}, with
+ * an empty chunk as a heartbeat once a second. The backup answers each chunk
+ * with {@code [long lastSeq]} once the records are in its own journal.
+ *
+ * <p>A backup that falls more than {@code maxLagBytes} behind is disconnected
+ * and has to start over from a new snapshot.
+ */
+final class ReplicationPrimary implements Journal.Listener, Closeable {
+
+    static final int MAGIC = 0x5245504c;
+    static final long HEARTBEAT_MILLIS = 1000;
+    // Low bits of a version that hold the journal sequence; the run epoch is above them.
+    private static final int EPOCH_SHIFT = 43;
+
+    /**
+     * Writes a snapshot covering every record before {@code segment}.
+     */
+    @FunctionalInterface
+    interface SnapshotWriter {
+        void write(OutputStream out, long segment) throws IOException;
+    }
+
+    private final int port;
+    private final Journal journal;
+    private final SnapshotWriter snapshots;
+    private final AsyncLogger log;
+    private final long maxLagBytes;
+    private final long epoch;
+    private final CopyOnWriteArrayList<Link> links = new CopyOnWriteArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition acked = lock.newCondition();
+
+    private ServerSocket socket;
+    private volatile boolean closed;
+
+    ReplicationPrimary(int port, Journal journal, long epoch, SnapshotWriter snapshots, AsyncLogger log,
+            long maxLagBytes) {
+        this.port = port;
+        this.journal = journal;
+        this.epoch = epoch;
+        this.snapshots = snapshots;
+        this.log = log;
+        this.maxLagBytes = maxLagBytes;
+    }
+
+    /**
+     * Version of the state after record {@code seq} of the run numbered
+     * {@code epoch}. A primary's journal numbers its records from 1 again
+     * each time it starts, and a backup that takes over numbers its own, so
+     * each run starts a higher epoch and versions keep growing across
+     * restarts and takeovers.
+     */
+    static long version(long epoch, long seq) {
+        return epoch << EPOCH_SHIFT | seq;
+    }
+
+    void start() throws IOException {
+        socket = new ServerSocket();
+        socket.bind(new InetSocketAddress(port));
+        journal.setListener(this);
+        Thread acceptor = new Thread(this::acceptLoop, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int backups() {
+        return links.size();
+    }
+
+    /**
+     * Read replicas that are in sync, as {@code host:port} of their registries.
+     */
+    List<String> readReplicas() {
+        List<String> replicas = new ArrayList<>();
+        for (Link link : links) {
+            if (link.inSync && link.readPort > 0) {
+                replicas.add(link.connection.getInetAddress().getHostAddress() + ":" + link.readPort);
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * Highest sequence number acknowledged by a backup that is in sync, or -1
+     * when no backup is.
+     */
+    long ackedSequence() {
+        long max = -1;
+        for (Link link : links) {
+            if (link.inSync) {
+                max = Math.max(max, link.ackedSeq);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Waits until a backup has applied every record up to {@code seq}. Returns
+     * false at once when no backup is in sync, and after {@code timeoutMillis}
+     * if none caught up, so a slow or lost backup degrades replication to
+     * asynchronous instead of stopping the primary.
+     */
+    boolean awaitAcked(long seq, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (true) {
+                long ackedSeq = ackedSequence();
+                if (ackedSeq < 0) {
+                    return false;
+                }
+                if (ackedSeq >= seq) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                acked.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Disconnects every backup so each starts over from a new snapshot, for
+     * changes made to the state without going through the journal.
+     */
+    void resync() {
+        for (Link link : links) {
+            log.info("Resyncing backup " + link.connection.getRemoteSocketAddress());
+            link.close();
+        }
+    }
+
+    @Override
+    public void written(long segment, ByteBuffer frames, long lastSeq) {
+        if (links.isEmpty()) {
+            return;
+        }
+        byte[] copy = new byte[frames.remaining()];
+        frames.get(copy);
+        for (Link link : links) {
+            link.offer(new Chunk(segment, copy, lastSeq));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        journal.setListener(null);
+        if (socket != null) {
+            socket.close();
+        }
+        for (Link link : links) {
+            link.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket connection = socket.accept();
+                connection.setTcpNoDelay(true);
+                Link link = new Link(connection);
+                Thread sender = new Thread(link::send, "replication-send-" + connection.getRemoteSocketAddress());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    log.error("Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void signalAcked() {
+        lock.lock();
+        try {
+            acked.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private record Chunk(long segment, byte[] frames, long lastSeq) {
+    }
+
+    /**
+     * One connected backup: a sender thread that owns the output and a reader
+     * thread for its acknowledgements.
+     */
+    private final class Link {
+
+        private final Socket connection;
+        private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private volatile long ackedSeq = -1;
+        private volatile boolean inSync;
+        private volatile int readPort;
+
+        Link(Socket connection) {
+            this.connection = connection;
+        }
+
+        void offer(Chunk chunk) {
+            if (queuedBytes.addAndGet(chunk.frames().length) > maxLagBytes) {
+                log.warn("Backup " + connection.getRemoteSocketAddress() + " is more than " + maxLagBytes
+                        + " bytes behind, disconnecting it");
+                close();
+                return;
+            }
+            queue.add(chunk);
+        }
+
+        void send() {
+            String backup = String.valueOf(connection.getRemoteSocketAddress());
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(connection.getOutputStream(), 64 * 1024));
+                // Unbuffered, so the acknowledgements that follow are left for readAcks.
+                readPort = new DataInputStream(connection.getInputStream()).readInt();
+
+                // Queue batches from here on; the roll below puts everything
+                // older in segments the snapshot covers.
+                links.add(this);
+                long lastSeq = journal.lastSequence();
+                long segment = journal.roll();
+                long start = System.nanoTime();
+                out.writeInt(MAGIC);
+                out.writeLong(epoch);
+                snapshots.write(out, segment);
+                out.flush();
+                log.info((readPort > 0 ? "Read replica " : "Backup ") + backup + " connected, sent snapshot " + segment + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+                Thread reader = new Thread(this::readAcks, "replication-acks-" + backup);
+                reader.setDaemon(true);
+                reader.start();
+
+                while (!connection.isClosed()) {
+                    Chunk chunk = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (chunk == null) {
+                        out.writeInt(0);
+                        out.writeLong(lastSeq);
+                        out.flush();
+                        continue;
+                    }
+                    // Send everything already queued before flushing once.
+                    do {
+                        queuedBytes.addAndGet(-chunk.frames().length);
+                        if (chunk.segment() >= segment) {
+                            out.writeInt(chunk.frames().length);
+                            out.writeLong(chunk.lastSeq());
+                            out.write(chunk.frames());
+                            lastSeq = chunk.lastSeq();
+                        }
+                    } while ((chunk = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Backup " + backup + " disconnected: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private void readAcks() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                while (true) {
+                    ackedSeq = in.readLong();
+                    inSync = true;
+                    signalAcked();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            links.remove(this);
+            inSync = false;
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+            signalAcked();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.pucrs;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs requests on a configurable pool and bounds how many may be in flight.
+ *
+ * <ul>
+ * <li>{@code caller}: RMI requests run on the RMI connection thread, which
+ * already is one thread per request, so they take no extra thread or handoff.
+ * The binary transport must not block its selector, so its requests still
+ * hop, to virtual threads where the runtime has them and a cached pool
+ * otherwise.</li>
+ * <li>{@code fixed}: a pool of {@code threads} platform threads.</li>
+ * <li>{@code cached}: an unbounded pool of platform threads.</li>
+ * <li>{@code virtual}: one virtual thread per request, so blocking sleeps and
+ * journal waits park cheaply. Needs Java 21; older runtimes fall back to
+ * {@code cached}.</li>
+ * </ul>
+ *
+ * <p>Admission is a non-blocking semaphore: when {@code maxInFlight} requests
+ * are already running, new ones are refused at once so the caller can reply
+ * that the server is busy instead of queueing work it cannot keep up with.
+ */
+class RequestExecutor {
+
+    private final String mode;
+    private final ExecutorService pool;
+    private final boolean inline;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final LongAdder rejected = new LongAdder();
+
+    // Set while a request runs on one of this executor's tasks, so nested
+    // calls from the binary transport into the server do not hop again.
+    private final ThreadLocal<Boolean> inside = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    RequestExecutor(String mode, int threads, int maxInFlight) {
+        switch (mode) {
+            case "caller":
+                ExecutorService io = virtualThreadPerTask();
+                this.pool = io != null ? io : Executors.newCachedThreadPool(named("request-io"));
+                break;
+            case "fixed":
+                this.pool = Executors.newFixedThreadPool(threads, named("request"));
+                break;
+            case "cached":
+                this.pool = Executors.newCachedThreadPool(named("request"));
+                break;
+            case "virtual":
+                ExecutorService virtual = virtualThreadPerTask();
+                if (virtual == null) {
+                    mode = "cached";
+                    virtual = Executors.newCachedThreadPool(named("request"));
+                }
+                this.pool = virtual;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown executor: " + mode);
+        }
+        this.mode = mode;
+        this.inline = mode.equals("caller");
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    String mode() {
+        return mode;
+    }
+
+    int maxInFlight() {
+        return maxInFlight;
+    }
+
+    int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Runs {@code task} and waits for its result, or returns {@code busy}
+     * without running it when the server is saturated.
+     */
+    <T> T call(Callable<T> task, Supplier<T> busy) throws Exception {
+        if (inside.get()) {
+            return task.call();
+        }
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            return busy.get();
+        }
+        if (inline) {
+            try {
+                inside.set(Boolean.TRUE);
+                return task.call();
+            } finally {
+                inside.set(Boolean.FALSE);
+                permits.release();
+            }
+        }
+
+        Future<T> future;
+        try {
+            future = pool.submit(() -> {
+                inside.set(Boolean.TRUE);
+                try {
+                    return task.call();
+                } finally {
+                    inside.set(Boolean.FALSE);
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception exception) {
+                throw exception;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Starts {@code task} in the background. Returns false without running it
+     * when the server is saturated.
+     */
+    boolean submit(Runnable task) {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            return false;
+        }
+        try {
+            pool.execute(() -> {
+                inside.set(Boolean.TRUE);
+                try {
+                    task.run();
+                } finally {
+                    inside.set(Boolean.FALSE);
+                    permits.release();
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits up to {@code timeout} for every request in flight to finish,
+     * including those running on the caller's thread, then stops the pool.
+     * The transports must stop admitting requests first. Returns false if
+     * some were still running.
+     */
+    boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean drained = permits.tryAcquire(maxInFlight, timeout, unit);
+        pool.shutdown();
+        return drained;
+    }
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} looked up by name,
+     * since this code still compiles for Java 17. Returns null when the
+     * running JVM has no virtual threads.
+     */
+    private static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory named(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,265 @@
+package com.pucrs;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToLongFunction;
+
+/**
+ * Single-writer execution engine. Request threads publish their work into a
+ * pre-allocated ring; one business thread applies every entry in ring order,
+ * so the account store has a single writer and needs no locks, and the
+ * journal receives records in exactly the order they were applied. A second
+ * thread waits for the journal's group commit of what the business thread
+ * applied and then releases the waiting callers, so the business thread never
+ * blocks on the disk.
+ *
+ * <p>Producers claim a sequence number, fill the slot and mark it published;
+ * a slot is reused only once the reply stage has released it, so a full ring
+ * holds producers back instead of growing.
+ */
+final class RingBufferEngine {
+
+    // Iterations a stage spins on an empty ring before it parks.
+    private static final int SPINS = 100;
+    private static final long FULL_PARK_NANOS = 10_000;
+
+    /**
+     * Work run on the business thread.
+     */
+    @FunctionalInterface
+    interface Step<T> {
+        T apply() throws RemoteException;
+    }
+
+    /**
+     * Waits until the journal holds everything the business thread applied,
+     * up to the record numbered {@code seq}.
+     */
+    @FunctionalInterface
+    interface Durability {
+        void await(long seq) throws IOException, InterruptedException;
+    }
+
+    private final Ticket<?>[] ring;
+    private final int mask;
+    // Sequence of the entry published in each slot, -1 until the first.
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final Durability durability;
+    private final AsyncLogger log;
+
+    // Last sequence applied by the business thread and released by the reply thread.
+    private volatile long applied = -1;
+    private volatile long released = -1;
+    private volatile boolean businessParked;
+    private volatile boolean replyParked;
+    private Thread business;
+    private Thread replier;
+
+    private final LongAdder replyBatches = new LongAdder();
+
+    RingBufferEngine(int size, Durability durability, AsyncLogger log) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.ring = new Ticket<?>[capacity];
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        this.durability = durability;
+        this.log = log;
+    }
+
+    void start() {
+        business = new Thread(this::businessLoop, "engine-business");
+        business.setDaemon(true);
+        replier = new Thread(this::replyLoop, "engine-reply");
+        replier.setDaemon(true);
+        business.start();
+        replier.start();
+    }
+
+    int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Publishes {@code step} and returns at once; {@link Ticket#await()}
+     * returns its result once it is applied and journaled. {@code journalSeq}
+     * gives the journal sequence number of a result, 0 if it wrote nothing.
+     */
+    <T> Ticket<T> submit(Step<T> step, ToLongFunction<T> journalSeq) {
+        Ticket<T> ticket = new Ticket<>(step, journalSeq, Thread.currentThread());
+        long seq = claimed.incrementAndGet();
+        while (seq - released > ring.length) {
+            LockSupport.parkNanos(this, FULL_PARK_NANOS);
+        }
+        int slot = (int) seq & mask;
+        ring[slot] = ticket;
+        published.set(slot, seq);
+        if (businessParked) {
+            LockSupport.unpark(business);
+        }
+        return ticket;
+    }
+
+    /**
+     * Runs {@code step} on the business thread and waits for it to be durable.
+     */
+    <T> T execute(Step<T> step, ToLongFunction<T> journalSeq) throws RemoteException {
+        return submit(step, journalSeq).await();
+    }
+
+    @Override
+    public String toString() {
+        long batches = replyBatches.sum();
+        return String.format("engine: ring=%d applied=%d replyBatches=%d perBatch=%.2f", ring.length, applied + 1,
+                batches, batches == 0 ? 0.0 : (applied + 1.0) / batches);
+    }
+
+    private void businessLoop() {
+        long next = 0;
+        int spins = 0;
+        while (true) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                if (++spins < SPINS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                // Producers check the flag after publishing, so one that
+                // publishes after the check below unparks this thread.
+                businessParked = true;
+                if (published.get(slot) != next) {
+                    LockSupport.park(this);
+                }
+                businessParked = false;
+                spins = 0;
+                continue;
+            }
+            spins = 0;
+            ring[slot].apply();
+            applied = next;
+            if (replyParked) {
+                LockSupport.unpark(replier);
+            }
+            next++;
+        }
+    }
+
+    private void replyLoop() {
+        long next = 0;
+        int spins = 0;
+        while (true) {
+            long last = applied;
+            if (last < next) {
+                if (++spins < SPINS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                replyParked = true;
+                if (applied < next) {
+                    LockSupport.park(this);
+                }
+                replyParked = false;
+                spins = 0;
+                continue;
+            }
+            spins = 0;
+
+            long seq = 0;
+            for (long i = next; i <= last; i++) {
+                seq = Math.max(seq, ring[(int) i & mask].journalSeq);
+            }
+            try {
+                durability.await(seq);
+            } catch (IOException e) {
+                log.error("Journal failed under the engine: " + e.getMessage());
+                for (long i = next; i <= last; i++) {
+                    ring[(int) i & mask].fail(new RemoteException("Journal unavailable", e));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            for (long i = next; i <= last; i++) {
+                int slot = (int) i & mask;
+                Ticket<?> ticket = ring[slot];
+                ring[slot] = null;
+                ticket.release();
+            }
+            released = last;
+            replyBatches.increment();
+            next = last + 1;
+        }
+    }
+
+    /**
+     * One published step and, once applied, its result.
+     */
+    static final class Ticket<T> {
+
+        private final Step<T> step;
+        private final ToLongFunction<T> sequencer;
+        private final Thread owner;
+        private T value;
+        private RemoteException failure;
+        private Throwable error;
+        // Written by the business thread before it advances its cursor.
+        private long journalSeq;
+        private volatile boolean done;
+
+        Ticket(Step<T> step, ToLongFunction<T> sequencer, Thread owner) {
+            this.step = step;
+            this.sequencer = sequencer;
+            this.owner = owner;
+        }
+
+        void apply() {
+            try {
+                value = step.apply();
+                journalSeq = sequencer.applyAsLong(value);
+            } catch (RemoteException e) {
+                failure = e;
+            } catch (Throwable e) {
+                // Even an Error goes back to the owner: if it ended the
+                // business thread, every caller would wait forever.
+                error = e;
+            }
+        }
+
+        void fail(RemoteException e) {
+            if (failure == null && error == null) {
+                failure = e;
+            }
+        }
+
+        void release() {
+            done = true;
+            LockSupport.unpark(owner);
+        }
+
+        T await() throws RemoteException {
+            while (!done) {
+                LockSupport.park(this);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (error instanceof RuntimeException e) {
+                throw e;
+            }
+            if (error instanceof Error e) {
+                throw e;
+            }
+            if (error != null) {
+                throw new RemoteException("Request failed", error);
+            }
+            return value;
+        }
+    }
+}
@@ -1,33 +1,141 @@
 package com.pucrs;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.pucrs.interfaces.BatchOperation;
 import com.pucrs.interfaces.IAtmRemote;
 import com.pucrs.interfaces.IBranchRemote;
-
-public class Server extends UnicastRemoteObject implements IAtmRemote, IBranchRemote {
-
-    private static final int PORT = 8080;
-    private static final double ERROR_RATE = 0.1;
-    private static final long MAX_SLEEP = 50;
-
-    private static ConcurrentHashMap<Long, Map<String, String>> requestLog = new ConcurrentHashMap<>();
-    private static ConcurrentHashMap<Long, Double> balance = new ConcurrentHashMap<>();
-
-    private static final String RESET = "\u001B[0m";
-    private static final String RED = "\u001B[31m";
-    private static final String YELLOW = "\u001B[33m";
-    private static final String GREEN = "\u001B[32m";
-
-    private static final ExecutorService executorService = Executors.newCachedThreadPool();
+import com.pucrs.interfaces.IReadRemote;
+import com.pucrs.interfaces.IShardDirectory;
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.OperationType;
+import com.pucrs.interfaces.RetryDefaults;
+import com.pucrs.interfaces.ShardMap;
+
+public class Server extends UnicastRemoteObject implements IAtmRemote, IBranchRemote, IShardDirectory {
+
+    private static final int PORT = Integer.getInteger("server.port", 8080);
+    private static final int NIO_PORT = Integer.getInteger("server.nio.port", PORT + 1);
+    // Every shard is started with the same map and its own index in it.
+    private static final ShardMap SHARDS = ShardMap.parse(System.getProperty("server.shardMap", "localhost:" + PORT));
+    private static final int SHARD = Integer.getInteger("server.shard", 0);
+    // Keeps shards started from the same directory apart.
+    private static final String SHARD_SUFFIX = SHARDS.size() > 1 ? "-shard-" + SHARD : "";
+    // rmi, nio or both
+    private static final String TRANSPORT = System.getProperty("server.transport", "rmi");
+    private static final boolean JOURNAL_FSYNC = Boolean.parseBoolean(
+            System.getProperty("server.journal.fsync", "true"));
+    // Replication: a primary streams its journal to backups connecting on
+    // REPLICATION_PORT (0 disables it); a backup follows REPLICATION_PRIMARY.
+    private static final int REPLICATION_PORT = Integer.getInteger("server.replication.port", 0);
+    private static final String REPLICATION_PRIMARY = System.getProperty("server.replication.primary");
+    // Whether replies wait for a backup to acknowledge their records.
+    private static final boolean REPLICATION_SYNC = Boolean.getBoolean("server.replication.sync");
+    private static final long REPLICATION_ACK_TIMEOUT = Long.getLong("server.replication.ackTimeout", 1000);
+    private static final long REPLICATION_MAX_LAG = Long.getLong("server.replication.maxLag", 64 << 20);
+    private static final long TAKEOVER_AFTER = Long.getLong("server.replication.takeoverAfter", 5000);
+    // A follower is a read replica: it follows REPLICATION_PRIMARY, serves reads
+    // on PORT and never takes over. Reads are refused once it has not heard from
+    // the primary for MAX_STALENESS ms.
+    private static final boolean FOLLOWER = Boolean.getBoolean("server.replication.follower");
+    private static final long MAX_STALENESS = Long.getLong("server.replication.maxStaleness", 2000);
+    // Largest amount accepted in a single operation, so cents always fit in a long.
+    private static final double MAX_AMOUNT = 1e13;
+
+    // Replies are kept for twice as long as a client with the default retry
+    // policy keeps retrying a request id. Clients that raise -Dbank.retry.maxAttempts
+    // or -Dbank.retry.maxDelay, or use a longer timeout, need -Dserver.requestLog.ttl
+    // raised to match, or a late retry is applied again.
+    private static final long REQUEST_LOG_TTL = Long.getLong("server.requestLog.ttl", 2 * RetryDefaults.window());
+    private static final int REQUEST_LOG_CAPACITY = Integer.getInteger("server.requestLog.capacity", 1 << 20);
+    private static final long STATS_INTERVAL = 60;
+    private static final long CHECKPOINT_INTERVAL = Long.getLong("server.checkpointInterval", 300);
+    // Opening balances loaded at startup instead of the mock accounts; see BulkLoader.
+    private static final String BULK_LOAD = System.getProperty("server.bulkLoad");
+    private static final int BULK_LOAD_THREADS = Math.max(1, Integer.getInteger("server.bulkLoad.threads",
+            Runtime.getRuntime().availableProcessors()));
+
+    // Backups and followers default to their own files, so they can run next to their primary.
+    private static final String ROLE_SUFFIX = REPLICATION_PRIMARY == null ? ""
+            : FOLLOWER ? "-follower-" + PORT : "-backup";
+    private static final Path DATA_DIR = Path.of(System.getProperty("server.dataDir",
+            "data" + SHARD_SUFFIX + ROLE_SUFFIX));
+    private static final byte READ_ONLY = 0;
+    private static final int MAX_BATCH = 10000;
+    private static final Set<OperationType> ATM_OPERATIONS = EnumSet.of(
+            OperationType.DEPOSIT, OperationType.WITHDRAW, OperationType.GET_BALANCE);
+    // Batch entries name a single account.
+    private static final Set<OperationType> BRANCH_OPERATIONS = EnumSet.complementOf(
+            EnumSet.of(OperationType.TRANSFER));
+
+    private static final OperationResult.Status[] STATUSES = OperationResult.Status.values();
+
+    private static final IdempotencyCache<OperationResult> requestLog =
+            new IdempotencyCache<>(REQUEST_LOG_CAPACITY, REQUEST_LOG_TTL);
+    private static AccountStore balance;
+    private static final AccountLocks locks = new AccountLocks(Runtime.getRuntime().availableProcessors() * 16);
+    // With -Dserver.combining, deposits and withdrawals go through a flat combiner.
+    private static final FlatCombiner combiner = Boolean.getBoolean("server.combining")
+            ? new FlatCombiner(locks) : null;
+    // locks, or ringbuffer to apply every request on a single thread; see RingBufferEngine.
+    private static final String ENGINE = System.getProperty("server.engine", "locks");
+    private static final int RING_SIZE = Integer.getInteger("server.engine.ringSize", 16384);
+    private static RingBufferEngine engine;
+    private static Journal journal;
+    // Held for the life of the process so no other server uses DATA_DIR.
+    private static FileLock dataLock;
+    private static long checkpointedSeq;
+    // Run epoch in the versions of replies, see ReplicationPrimary.version.
+    private static volatile long epoch;
+    private static volatile ReplicationPrimary replication;
+    private static volatile ReplicationBackup follower;
+    private static Server server;
+    // The read-only binding of a follower and the binary transport, when started.
+    private static volatile ReadServer readServer;
+    private static volatile NioServer nio;
+    // Simulated faults and delays, see ChaosProfile.
+    private static ChaosProfile chaos;
+
+    private static final AsyncLogger log = openLogger();
+
+    // RMI already runs each call on its own connection thread, so by default
+    // RMI requests run there and only the binary transport hops to a pool;
+    // see RequestExecutor for the other modes.
+    private static final RequestExecutor executor = new RequestExecutor(
+            System.getProperty("server.executor", "caller"),
+            Integer.getInteger("server.executor.threads", Runtime.getRuntime().availableProcessors() * 16),
+            Integer.getInteger("server.maxInFlight", 10000));
+    private static final ServerMetrics metrics = new ServerMetrics(() -> balance.size(), requestLog::size, executor);
+    private static final ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "server-housekeeping");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     protected Server() throws RemoteException {
         super();
@@ -37,404 +145,935 @@ public class Server extends UnicastRemoteObject implements IAtmRemote, IBranchRe
         try {
             clearConsole();
 
-            logMessage("Starting server...", RESET);
+            log.info("Starting server...");
 
-            IAtmRemote atmStub = new Server();
-            IBranchRemote branchStub = new Server();
+            if (SHARD < 0 || SHARD >= SHARDS.size()) {
+                throw new IllegalArgumentException("Shard " + SHARD + " is not in the shard map " + SHARDS);
+            }
+            if (SHARDS.size() > 1) {
+                log.info("Shard " + SHARD + " of " + SHARDS.size() + ": " + SHARDS);
+            }
 
-            Registry registry = LocateRegistry.createRegistry(PORT);
+            if (!TRANSPORT.equals("rmi") && !TRANSPORT.equals("nio") && !TRANSPORT.equals("both")) {
+                throw new IllegalArgumentException("Unknown transport: " + TRANSPORT);
+            }
+            if (!ENGINE.equals("locks") && !ENGINE.equals("ringbuffer")) {
+                throw new IllegalArgumentException("Unknown engine: " + ENGINE);
+            }
 
-            registry.bind("atm-server", atmStub);
-            registry.bind("branch-server", branchStub);
+            if (FOLLOWER && REPLICATION_PRIMARY == null) {
+                throw new IllegalArgumentException("A follower needs server.replication.primary");
+            }
 
-            logMessage("Server started on port: " + PORT, RESET);
-            logMessage("Bindings: " + String.join(", ", registry.list()), RESET);
+            recover();
 
-            logMessage("Mocking accounts...", RESET);
-            mockAccounts();
-            balance.keySet().forEach(id -> logMessage("Account ID: " + id, RESET));
+            // One exported object serves both bindings, so ATM and branch traffic
+            // go through the same account locks.
+            server = new Server();
+
+            if (REPLICATION_PRIMARY == null) {
+                if (BULK_LOAD != null) {
+                    bulkLoad(Path.of(BULK_LOAD));
+                } else {
+                    log.info("Mocking accounts...");
+                    mockAccounts();
+                }
+                log.info("Accounts: " + balance.size());
+                serve();
+            } else {
+                int colon = REPLICATION_PRIMARY.lastIndexOf(':');
+                ReplicationBackup backup = new ReplicationBackup(REPLICATION_PRIMARY.substring(0, colon),
+                        Integer.parseInt(REPLICATION_PRIMARY.substring(colon + 1)), new BackupApplier(), log,
+                        TAKEOVER_AFTER, FOLLOWER ? PORT : 0);
+                if (FOLLOWER) {
+                    follower = backup;
+                    readServer = new ReadServer();
+                    LocateRegistry.createRegistry(PORT).bind("read-server", readServer);
+                    log.info("Read replica of " + REPLICATION_PRIMARY + " on port " + PORT + ", max staleness "
+                            + MAX_STALENESS + " ms");
+                } else {
+                    log.info("Backup of " + REPLICATION_PRIMARY + ", taking over after " + TAKEOVER_AFTER + " ms");
+                }
+                backup.start();
+            }
+
+            log.info("Chaos profile: " + chaos);
+            metrics.register();
+            log.info("Metrics: JMX " + ServerMetrics.NAME);
+            if (REPLICATION_PRIMARY == null) {
+                new ServerAdmin(file -> bulkLoad(Path.of(file)).toString()).register();
+                log.info("Administration: JMX " + ServerAdmin.NAME);
+            }
+            log.info("Request executor: " + executor.mode() + ", max in flight: " + executor.maxInFlight());
+            if (engine != null) {
+                log.info("Single-writer engine, ring of " + engine.capacity() + " entries");
+            } else if (combiner != null) {
+                log.info("Flat combining of deposits and withdrawals enabled");
+            }
+
+            housekeeping.scheduleAtFixedRate(() -> {
+                requestLog.evictExpired();
+                log.info(requestLog.stats());
+                log.info("Requests in flight: " + executor.inFlight() + ", rejected: " + executor.rejected());
+                log.info(metrics.toString());
+                if (engine != null) {
+                    log.info(engine.toString());
+                } else if (combiner != null) {
+                    log.info(combiner.toString());
+                }
+            }, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.SECONDS);
+            housekeeping.scheduleWithFixedDelay(Server::checkpoint, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL,
+                    TimeUnit.SECONDS);
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static void mockAccounts() {
-        balance.put(5000L, 0.);
-        balance.put(8080L, 0.);
-    }
-
-    @Override
-    public synchronized Map<String, String> getAccountInfo(long requestId, long accountId) throws RemoteException {
-        try {
-            System.out.println("\n#" + requestId + " - get account info request received.");
-            if (!requestLog.containsKey(requestId)) {
+    /**
+     * Binds the client transports and, when configured, starts streaming the
+     * journal to backups. A backup calls it when it takes over.
+     */
+    private static void serve() throws Exception {
+        if (!TRANSPORT.equals("nio")) {
+            Registry registry = LocateRegistry.createRegistry(PORT);
 
-                System.out.println("#" + requestId + " - processing request...");
-                Thread.sleep((long) (Math.random() * MAX_SLEEP));
+            registry.bind("atm-server", server);
+            registry.bind("branch-server", server);
+            registry.bind("shard-map", server);
 
-                // Simulate an error
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while processing request!");
-                    return null;
-                }
+            log.info("Server started on port: " + PORT);
+            log.info("Bindings: " + String.join(", ", registry.list()));
+        }
 
-                Map<String, String> processedRequest;
+        if (!TRANSPORT.equals("rmi")) {
+            nio = new NioServer(NIO_PORT, server, server, executor, log);
+            nio.start();
+            log.info("Binary transport started on port: " + NIO_PORT);
+        }
 
-                if (balance.containsKey(accountId)) {
+        if (REPLICATION_PORT > 0) {
+            ReplicationPrimary primary = new ReplicationPrimary(REPLICATION_PORT, journal, epoch,
+                    (out, segment) -> {
+                        awaitApplied();
+                        Snapshots.write(out, segment, balance, requestLog);
+                    }, log, REPLICATION_MAX_LAG);
+            primary.start();
+            replication = primary;
+            log.info("Replication on port " + REPLICATION_PORT + (REPLICATION_SYNC ? ", synchronous" : ""));
+        }
+    }
 
-                    final Double balanceAmount = balance.get(accountId);
+    private static void mockAccounts() {
+        for (long accountId : new long[] { 5000L, 8080L }) {
+            if (owns(accountId)) {
+                balance.create(accountId, 0);
+            }
+        }
+    }
 
-                    processedRequest = Map.of(
-                            "success", "true",
-                            "message", "Account info Account ID: #" + accountId + "Amount: " + balanceAmount);
+    /**
+     * Creates the accounts listed in {@code file} with their opening
+     * balances. The loaded accounts are not journaled one by one: a checkpoint
+     * right after the load persists them, and backups are disconnected so
+     * they resync from that snapshot. A crash before the checkpoint ends loses
+     * the load, which can simply be run again since existing accounts are
+     * rejected as duplicates.
+     */
+    static synchronized BulkLoader.Result bulkLoad(Path file) throws IOException {
+        log.info("Bulk loading accounts from " + file + " on " + BULK_LOAD_THREADS + " threads...");
+        BulkLoader.Result result = new BulkLoader(balance, Server::owns, Math.round(MAX_AMOUNT * 100),
+                BULK_LOAD_THREADS).load(file);
+        log.info("Bulk load of " + file + ": " + result);
+        if (result.loaded() > 0) {
+            checkpointedSeq = -1;
+            checkpoint();
+            ReplicationPrimary primary = replication;
+            if (primary != null) {
+                primary.resync();
+            }
+        }
+        return result;
+    }
 
-                    requestLog.put(requestId, processedRequest);
+    private static boolean owns(long accountId) {
+        return SHARDS.shardOf(accountId) == SHARD;
+    }
 
-                    System.out.println("#" + requestId + " - Create account request not processed!");
-                } else {
-                    processedRequest = Map.of(
-                            "success", "false",
-                            "message", "Account #" + accountId + " not exist!");
+    /**
+     * Rebuilds balances and the request log from the latest snapshot plus the
+     * journal segments written after it, then reopens the journal for appending.
+     * Also loads the chaos profile. The benchmarks call it to run the server
+     * in-process.
+     */
+    static void recover() throws IOException {
+        chaos = ChaosProfile.load();
+        lockDataDir();
+        startEpoch(0);
+
+        Path legacy = DATA_DIR.resolve("journal.log");
+        if (Files.exists(legacy)) {
+            Files.move(legacy, Journal.segmentFile(DATA_DIR, 0));
+        }
 
-                    requestLog.put(requestId, processedRequest);
+        balance = openStore();
 
-                    System.out.println("#" + requestId + " - get info account request processed!");
-                }
+        // A store that was closed cleanly already holds every journaled change,
+        // only the request log has to be rebuilt.
+        boolean warm = balance.recoveredCleanly();
+        if (!warm) {
+            balance.clear();
+        }
 
-                System.out.println("#" + requestId + " - sending response to client...");
+        log.info("Loading snapshot from " + DATA_DIR + (warm ? " (request log only)..." : "..."));
+        long fromSegment = Snapshots.loadLatest(DATA_DIR, warm ? null : balance, requestLog);
+        long records = Journal.replay(DATA_DIR, fromSegment, Server::applyRecord);
+        log.info("Recovered " + balance.size() + " accounts, replayed " + records + " records from segment "
+                + fromSegment + ".");
 
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while sending response.");
-                    return null;
+        journal = new Journal(DATA_DIR, JOURNAL_FSYNC);
+        if (ENGINE.equals("ringbuffer")) {
+            engine = new RingBufferEngine(RING_SIZE, Server::awaitDurable, log);
+            engine.start();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                // Stop taking requests, then let those already admitted finish
+                // before the last checkpoint.
+                stopServing();
+                if (!executor.shutdown(5, TimeUnit.SECONDS)) {
+                    log.warn("Shutting down with " + executor.inFlight() + " requests still running");
                 }
+                checkpoint();
+                journal.close();
+                balance.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                log.close();
+            }
+        }));
+    }
 
-                return processedRequest;
-
-            } else {
-                System.out.println("#" + requestId + " - get account info request is repeated");
-                System.out.println("#" + requestId + " - sending response to client again...");
-
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while sending response.");
-                    return null;
+    /**
+     * Unexports the RMI objects, so new calls fail and clients retry
+     * elsewhere, and closes the binary transport.
+     */
+    private static void stopServing() throws IOException {
+        for (UnicastRemoteObject exported : new UnicastRemoteObject[] { server, readServer }) {
+            if (exported != null) {
+                try {
+                    UnicastRemoteObject.unexportObject(exported, true);
+                } catch (NoSuchObjectException e) {
+                    // Never exported, as when the benchmarks run the server in-process.
                 }
-
-                return requestLog.get(requestId);
             }
-        } catch (InterruptedException e) {
-            return null;
+        }
+        NioServer transport = nio;
+        if (transport != null) {
+            transport.close();
         }
     }
 
-    @Override
-    public synchronized Map<String, String> createAccount(long requestId, long accountId) throws RemoteException {
-        try {
-            System.out.println("\n#" + requestId + " - create account request received.");
-            if (!requestLog.containsKey(requestId)) {
-
-                System.out.println("#" + requestId + " - processing request...");
-                Thread.sleep((long) (Math.random() * MAX_SLEEP));
-
-                // Simulate an error
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while processing request!");
-                    return null;
-                }
+    /**
+     * Starts a run epoch above both the last one started in {@code DATA_DIR}
+     * and {@code floor}, and persists it before any reply carries it.
+     */
+    private static void startEpoch(long floor) throws IOException {
+        Path file = DATA_DIR.resolve("epoch");
+        long last = Files.exists(file) ? Long.parseLong(Files.readString(file).trim()) : 0;
+        long next = Math.max(last, floor) + 1;
+        Path temp = DATA_DIR.resolve("epoch.tmp");
+        Files.writeString(temp, Long.toString(next));
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        epoch = next;
+    }
 
-                Map<String, String> processedRequest;
+    /**
+     * Locks {@code DATA_DIR}, failing if another server already uses it: a
+     * second process would overwrite its snapshots and delete its segments.
+     */
+    private static void lockDataDir() throws IOException {
+        if (dataLock != null) {
+            return;
+        }
+        Files.createDirectories(DATA_DIR);
+        FileChannel channel = FileChannel.open(DATA_DIR.resolve("server.lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        dataLock = channel.tryLock();
+        if (dataLock == null) {
+            channel.close();
+            throw new IOException(DATA_DIR.toAbsolutePath() + " is in use by another server, set server.dataDir");
+        }
+    }
 
-                if (balance.containsKey(accountId)) {
+    private static AccountStore openStore() throws IOException {
+        String type = System.getProperty("server.store", "heap");
+        switch (type) {
+            case "heap":
+                return new HeapAccountStore(Long.getLong("server.store.capacity", 1 << 20));
+            case "mapped":
+                return new MappedAccountStore(DATA_DIR.resolve("accounts.dat"),
+                        Long.getLong("server.store.capacity", 1 << 20));
+            default:
+                throw new IllegalArgumentException("Unknown account store: " + type);
+        }
+    }
 
-                    processedRequest = Map.of(
-                            "success", "false",
-                            "message", "Account already exists #" + accountId);
+    /**
+     * Starts a new journal segment, snapshots the current state and drops the
+     * segments and snapshots the new snapshot makes obsolete. Requests keep
+     * running while the snapshot is written.
+     */
+    private static synchronized void checkpoint() {
+        try {
+            if (journal.lastSequence() == checkpointedSeq) {
+                return;
+            }
+            checkpointedSeq = journal.lastSequence();
+
+            long start = System.nanoTime();
+            long segment = journal.roll();
+            awaitApplied();
+            long accounts = Snapshots.write(DATA_DIR, segment, balance, requestLog);
+            journal.deleteSegmentsBefore(segment);
+            Snapshots.deleteBefore(DATA_DIR, segment);
+
+            log.info("Checkpoint " + segment + ": " + accounts + " accounts in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException e) {
+            log.error("Checkpoint failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    requestLog.put(requestId, processedRequest);
+    /**
+     * Waits until every request that appended to the journal before this call
+     * has also stored its reply in the request log. Requests do both under
+     * their account locks, or on the engine's thread, so taking each stripe
+     * once, or running an empty step, is enough. Called after rolling the
+     * journal, so a snapshot has the reply of every record in the segments
+     * it replaces.
+     */
+    private static void awaitApplied() throws RemoteException {
+        if (engine != null) {
+            engine.execute(() -> Boolean.TRUE, applied -> 0);
+            return;
+        }
+        for (int i = 0; i < locks.size(); i++) {
+            ReentrantLock stripe = locks.stripe(i);
+            stripe.lock();
+            stripe.unlock();
+        }
+    }
 
-                    System.out.println("#" + requestId + " - Create account request not processed!");
-                } else {
-                    balance.put(accountId, 0.0);
-                    processedRequest = Map.of(
-                            "success", "true",
-                            "message", "Account #" + accountId + " created successfully!");
+    private static void applyRecord(byte type, long timestamp, long requestId, long accountId, long amount,
+            long balanceAfter, byte status, long toAccountId, long toBalanceAfter) {
+        OperationResult.Status replyStatus = STATUSES[status];
+        if (replyStatus == OperationResult.Status.OK) {
+            if (type == Journal.DELETE_ACCOUNT) {
+                balance.remove(accountId);
+            } else {
+                balance.put(accountId, balanceAfter);
+            }
+            if (type == Journal.TRANSFER) {
+                balance.put(toAccountId, toBalanceAfter);
+            }
+        }
+        requestLog.put(requestId,
+                new OperationResult(replyStatus, operationFor(type), accountId, amount, balanceAfter), timestamp);
+    }
 
-                    requestLog.put(requestId, processedRequest);
+    private static OperationType operationFor(byte journalType) {
+        switch (journalType) {
+            case Journal.CREATE_ACCOUNT:
+                return OperationType.CREATE_ACCOUNT;
+            case Journal.DELETE_ACCOUNT:
+                return OperationType.DELETE_ACCOUNT;
+            case Journal.DEPOSIT:
+                return OperationType.DEPOSIT;
+            case Journal.WITHDRAW:
+                return OperationType.WITHDRAW;
+            case Journal.TRANSFER:
+                return OperationType.TRANSFER;
+            default:
+                throw new IllegalArgumentException("Unknown journal record type " + journalType);
+        }
+    }
 
-                    System.out.println("#" + requestId + " - create account request processed!");
-                }
+    @Override
+    public OperationResult getAccountInfo(long requestId, long accountId) throws RemoteException {
+        return executeRequest(OperationType.GET_ACCOUNT_INFO, accountId,
+                () -> handleRequest("get account info", OperationType.GET_ACCOUNT_INFO, READ_ONLY, requestId, accountId, 0,
+                        () -> applyGetAccountInfo(accountId)));
+    }
 
-                System.out.println("#" + requestId + " - sending response to client...");
+    @Override
+    public OperationResult createAccount(long requestId, long accountId) throws RemoteException {
+        return executeRequest(OperationType.CREATE_ACCOUNT, accountId,
+                () -> handleRequest("create account", OperationType.CREATE_ACCOUNT, Journal.CREATE_ACCOUNT, requestId, accountId, 0,
+                        () -> applyCreateAccount(accountId)));
+    }
 
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while sending response.");
-                    return null;
-                }
+    @Override
+    public OperationResult deleteAccount(long requestId, long accountId) throws RemoteException {
+        return executeRequest(OperationType.DELETE_ACCOUNT, accountId,
+                () -> handleRequest("close account", OperationType.DELETE_ACCOUNT, Journal.DELETE_ACCOUNT, requestId, accountId, 0,
+                        () -> applyDeleteAccount(accountId)));
+    }
 
-                return processedRequest;
+    @Override
+    public OperationResult deposit(long requestId, long accountId, Double amount) throws RemoteException {
+        long cents = toCents(amount);
+        return executeRequest(OperationType.DEPOSIT, accountId,
+                () -> handleRequest("deposit", OperationType.DEPOSIT, Journal.DEPOSIT, requestId, accountId, cents,
+                        () -> applyDeposit(accountId, cents)));
+    }
 
-            } else {
-                System.out.println("#" + requestId + " - create account request is repeated");
-                System.out.println("#" + requestId + " - sending response to client again...");
+    @Override
+    public OperationResult withdraw(long requestId, long accountId, Double amount) throws RemoteException {
+        long cents = toCents(amount);
+        return executeRequest(OperationType.WITHDRAW, accountId,
+                () -> handleRequest("withdraw", OperationType.WITHDRAW, Journal.WITHDRAW, requestId, accountId, cents,
+                        () -> applyWithdraw(accountId, cents)));
+    }
 
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while sending response.");
-                    return null;
-                }
+    @Override
+    public OperationResult getBalance(long requestId, long accountId) throws RemoteException {
+        return executeRequest(OperationType.GET_BALANCE, accountId,
+                () -> handleRequest("get_balance", OperationType.GET_BALANCE, READ_ONLY, requestId, accountId, 0,
+                        () -> applyGetBalance(accountId)));
+    }
 
-                return requestLog.get(requestId);
-            }
-        } catch (InterruptedException e) {
-            return null;
+    @Override
+    public OperationResult transfer(long requestId, long fromAccountId, long toAccountId, Double amount)
+            throws RemoteException {
+        if (owns(fromAccountId) && !owns(toAccountId)) {
+            // Both sides have to commit in one journal record, so on one shard.
+            return result(OperationResult.Status.NOT_ALLOWED, OperationType.TRANSFER, fromAccountId, 0, 0);
         }
+        long cents = toCents(amount);
+        return executeRequest(OperationType.TRANSFER, fromAccountId,
+                () -> handleRequest("transfer", OperationType.TRANSFER, requestId, fromAccountId, toAccountId,
+                        () -> applyLocked(Journal.TRANSFER, requestId, fromAccountId, toAccountId, cents,
+                                () -> applyTransfer(fromAccountId, toAccountId, cents))));
     }
 
     @Override
-    public synchronized Map<String, String> deleteAccount(long requestId, long accountId) throws RemoteException {
-        try {
-            System.out.println("\n#" + requestId + " - close account request received.");
-            if (!requestLog.containsKey(requestId)) {
-
-                System.out.println("#" + requestId + " - processing request...");
-                Thread.sleep((long) (Math.random() * MAX_SLEEP));
-
-                // Simulate an error
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while processing request!");
-                    return null;
-                }
+    public ShardMap getShardMap() {
+        return SHARDS;
+    }
 
-                Map<String, String> processedRequest;
+    @Override
+    public List<String> getReadReplicas() {
+        ReplicationPrimary primary = replication;
+        return primary == null ? List.of() : primary.readReplicas();
+    }
 
-                if (balance.containsKey(accountId)) {
+    /**
+     * Whether a follower cannot answer for {@code minVersion}: it has not
+     * applied that record yet, or may be missing newer ones because the
+     * primary has been silent too long. The primary is never stale.
+     */
+    private static boolean isStale(long minVersion) {
+        ReplicationBackup backup = follower;
+        return backup != null && (backup.appliedVersion() < minVersion || !backup.isCurrent(MAX_STALENESS));
+    }
 
-                    balance.remove(accountId);
+    /**
+     * Version of the state a reply reflects: the primary's last record, as
+     * applied so far on a follower.
+     */
+    private static long currentVersion() {
+        ReplicationBackup backup = follower;
+        return backup != null ? backup.appliedVersion() : ReplicationPrimary.version(epoch, journal.lastSequence());
+    }
 
-                    processedRequest = Map.of(
-                            "success", "true",
-                            "message", "Account exists and were removed #" + accountId);
+    @Override
+    public List<OperationResult> executeBatch(List<BatchOperation> operations) throws RemoteException {
+        return executeBatchRequest(operations, () -> handleBatch("batch", operations, ATM_OPERATIONS));
+    }
 
-                    requestLog.put(requestId, processedRequest);
+    @Override
+    public List<OperationResult> executeBranchBatch(List<BatchOperation> operations) throws RemoteException {
+        return executeBatchRequest(operations,
+                () -> handleBatch("branch batch", operations, BRANCH_OPERATIONS));
+    }
 
-                    System.out.println("#" + requestId + " - Create account request not processed!");
-                } else {
-                    processedRequest = Map.of(
-                            "success", "false",
-                            "message", "Account #" + accountId + " don't removed!");
+    private static OperationResult applyGetAccountInfo(long accountId) {
+        long current = balance.get(accountId);
+        if (current == AccountStore.ABSENT) {
+            return result(OperationResult.Status.ACCOUNT_NOT_FOUND, OperationType.GET_ACCOUNT_INFO, accountId, 0, 0);
+        }
+        return result(OperationResult.Status.OK, OperationType.GET_ACCOUNT_INFO, accountId, 0, current);
+    }
 
-                    requestLog.put(requestId, processedRequest);
+    private static OperationResult applyCreateAccount(long accountId) {
+        if (!balance.create(accountId, 0)) {
+            return result(OperationResult.Status.ACCOUNT_EXISTS, OperationType.CREATE_ACCOUNT, accountId, 0, 0);
+        }
+        return result(OperationResult.Status.OK, OperationType.CREATE_ACCOUNT, accountId, 0, 0);
+    }
 
-                    System.out.println("#" + requestId + " - close account request processed!");
-                }
+    private static OperationResult applyDeleteAccount(long accountId) {
+        if (!balance.remove(accountId)) {
+            return result(OperationResult.Status.ACCOUNT_NOT_FOUND, OperationType.DELETE_ACCOUNT, accountId, 0, 0);
+        }
+        return result(OperationResult.Status.OK, OperationType.DELETE_ACCOUNT, accountId, 0, 0);
+    }
 
-                System.out.println("#" + requestId + " - sending response to client...");
+    private static OperationResult applyDeposit(long accountId, long cents) {
+        if (cents < 0) {
+            return result(OperationResult.Status.INVALID_AMOUNT, OperationType.DEPOSIT, accountId, 0, 0);
+        }
+        long updated = balance.deposit(accountId, cents);
+        if (updated == AccountStore.ABSENT) {
+            return result(OperationResult.Status.ACCOUNT_NOT_FOUND, OperationType.DEPOSIT, accountId, cents, 0);
+        }
+        return result(OperationResult.Status.OK, OperationType.DEPOSIT, accountId, cents, updated);
+    }
 
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while sending response.");
-                    return null;
-                }
+    private static OperationResult applyWithdraw(long accountId, long cents) {
+        if (cents < 0) {
+            return result(OperationResult.Status.INVALID_AMOUNT, OperationType.WITHDRAW, accountId, 0, 0);
+        }
+        long updated = balance.withdraw(accountId, cents);
+        if (updated == AccountStore.ABSENT) {
+            return result(OperationResult.Status.ACCOUNT_NOT_FOUND, OperationType.WITHDRAW, accountId, cents, 0);
+        }
+        if (updated == AccountStore.INSUFFICIENT_FUNDS) {
+            return result(OperationResult.Status.INSUFFICIENT_FUNDS, OperationType.WITHDRAW, accountId, cents,
+                    balance.get(accountId));
+        }
+        return result(OperationResult.Status.OK, OperationType.WITHDRAW, accountId, cents, updated);
+    }
 
-                return processedRequest;
+    // Caller holds the locks of both accounts.
+    private static OperationResult applyTransfer(long fromAccountId, long toAccountId, long cents) {
+        if (cents < 0) {
+            return result(OperationResult.Status.INVALID_AMOUNT, OperationType.TRANSFER, fromAccountId, 0, 0);
+        }
+        if (fromAccountId == toAccountId) {
+            return result(OperationResult.Status.NOT_ALLOWED, OperationType.TRANSFER, fromAccountId, 0, 0);
+        }
+        long toBalance = balance.get(toAccountId);
+        if (toBalance == AccountStore.ABSENT) {
+            return result(OperationResult.Status.ACCOUNT_NOT_FOUND, OperationType.TRANSFER, toAccountId, cents, 0);
+        }
+        // Checked before the withdrawal: a credit that overflowed after it
+        // would lose the money. Both accounts are locked, so it still holds.
+        if (cents > Long.MAX_VALUE - toBalance) {
+            return result(OperationResult.Status.INVALID_AMOUNT, OperationType.TRANSFER, toAccountId, cents, 0);
+        }
+        long updated = balance.withdraw(fromAccountId, cents);
+        if (updated == AccountStore.ABSENT) {
+            return result(OperationResult.Status.ACCOUNT_NOT_FOUND, OperationType.TRANSFER, fromAccountId, cents, 0);
+        }
+        if (updated == AccountStore.INSUFFICIENT_FUNDS) {
+            return result(OperationResult.Status.INSUFFICIENT_FUNDS, OperationType.TRANSFER, fromAccountId, cents,
+                    balance.get(fromAccountId));
+        }
+        balance.deposit(toAccountId, cents);
+        return result(OperationResult.Status.OK, OperationType.TRANSFER, fromAccountId, cents, updated);
+    }
 
-            } else {
-                System.out.println("#" + requestId + " - close account request is repeated");
-                System.out.println("#" + requestId + " - sending response to client again...");
+    private static OperationResult applyGetBalance(long accountId) {
+        long current = balance.get(accountId);
+        if (current == AccountStore.ABSENT) {
+            return result(OperationResult.Status.ACCOUNT_NOT_FOUND, OperationType.GET_BALANCE, accountId, 0, 0);
+        }
+        return result(OperationResult.Status.OK, OperationType.GET_BALANCE, accountId, 0, current);
+    }
 
-                if (Math.random() < ERROR_RATE) {
-                    System.out.println("#" + requestId + " - error while sending response.");
-                    return null;
-                }
+    private static OperationResult result(OperationResult.Status status, OperationType operation, long accountId,
+            long amount, long balanceAfter) {
+        return new OperationResult(status, operation, accountId, amount, balanceAfter);
+    }
 
-                return requestLog.get(requestId);
-            }
-        } catch (InterruptedException e) {
-            return null;
+    /**
+     * Converts an amount received from a client to cents, or returns -1 if it
+     * is not a valid amount.
+     */
+    private static long toCents(Double amount) {
+        if (amount == null || !Double.isFinite(amount) || amount < 0 || amount > MAX_AMOUNT) {
+            return -1;
         }
+        return Math.round(amount * 100);
     }
 
-    @Override
-    public synchronized Map<String, String> deposit(long requestId, long accountId, Double amount) throws RemoteException {
-        logMessage("\n#" + requestId + " - deposit request received.");
+    /**
+     * Runs one request against a single account. The simulated processing delay
+     * happens outside of any lock; only the dedupe check and the state change
+     * itself run while holding the account's stripe, so requests for other
+     * accounts are never blocked behind it.
+     *
+     * <p>Mutations are appended to the journal while the lock is held, so the
+     * journal has the same per-account order as memory, and the reply is only
+     * sent once the record is on disk. With combining on, deposits and
+     * withdrawals are handed to the {@link FlatCombiner} instead of each
+     * taking the lock; with the ring buffer engine every request is applied
+     * on its business thread, without locks.
+     */
+    private OperationResult handleRequest(String operation, OperationType type, byte journalType, long requestId,
+            long accountId, long amount, RequestHandler handler) throws RemoteException {
+        return handleRequest(operation, type, requestId, accountId, accountId,
+                () -> applyLocked(journalType, requestId, accountId, amount, handler));
+    }
 
-        try {
-            if (!requestLog.containsKey(requestId)) {
-                
-                logMessage("#" + requestId + " - processing request...");
-                Thread.sleep(15000);
+    /**
+     * Same as above for an operation on two accounts, holding both their
+     * locks while it is applied.
+     */
+    private OperationResult handleRequest(String operation, OperationType type, long requestId, long accountId,
+            long otherAccountId, LockedStep step) throws RemoteException {
+        log.debug(requestId, operation, "request received.");
 
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while processing request!", RED);
-                    return null;
-                }
+        try {
+            int attempt = chaos.attempt(requestId);
+            OperationResult processedRequest = requestLog.get(requestId);
+            metrics.operations(1);
 
-                Map<String, String> processedRequest;
+            if (processedRequest == null) {
 
-                if (balance.containsKey(accountId)) {
-                    balance.put(accountId, balance.get(accountId) + amount);
+                log.debug(requestId, operation, "processing request...");
+                simulateWork(chaos.latency(type, requestId, attempt));
 
-                    processedRequest = Map.of(
-                            "success", "true",
-                            "message", "Deposited " + amount + " successfully into account #" + accountId);
+                if (chaos.failProcessing(type, requestId, attempt)) {
+                    metrics.processingFailure();
+                    log.warn(requestId, operation, "error while processing request!");
+                    return null;
+                }
 
-                    logMessage("#" + requestId + " - deposit request processed successfully!", GREEN);
+                Applied applied;
+                if (engine != null) {
+                    applied = engine.execute(step::apply, Applied::seq);
+                } else if (combiner != null && accountId == otherAccountId
+                        && (type == OperationType.DEPOSIT || type == OperationType.WITHDRAW)) {
+                    applied = combiner.run(accountId, step::apply);
                 } else {
-                    processedRequest = Map.of(
-                            "success", "false",
-                            "message", "Account #" + accountId + " not found");
-
-                    logMessage("#" + requestId + " - deposit request could not be processed!", RED);
+                    lock(accountId, otherAccountId);
+                    try {
+                        applied = step.apply();
+                    } finally {
+                        unlock(accountId, otherAccountId);
+                    }
                 }
-
-                requestLog.put(requestId, processedRequest);
-
-                logMessage("#" + requestId + " - sending response to client...");
-
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while sending response.", RED);
-                    return null;
+                awaitDurable(applied.seq());
+                processedRequest = applied.reply();
+
+                if (applied.repeated()) {
+                    metrics.dedupeHits(1);
+                    log.info(requestId, operation, "request is repeated");
+                } else if (processedRequest.isSuccess()) {
+                    log.info(requestId, operation, "request processed successfully!");
+                } else {
+                    log.info(requestId, operation, "request could not be processed!");
                 }
 
-                return processedRequest;
+                log.debug(requestId, operation, "sending response to client...");
 
             } else {
-                logMessage("#" + requestId + " - deposit request is repeated", YELLOW);
-                logMessage("#" + requestId + " - sending response to client again...");
+                metrics.dedupeHits(1);
+                log.info(requestId, operation, "request is repeated");
+                log.debug(requestId, operation, "sending response to client again...");
+                processedRequest = processedRequest.asReplayed();
 
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while sending response.", RED);
-                    return null;
-                }
+                // The original reply may still be waiting for its journal flush.
+                awaitDurable(journal.lastSequence());
+            }
 
-                return requestLog.get(requestId);
+            if (chaos.failResponse(type, requestId, attempt)) {
+                metrics.responseFailure();
+                log.warn(requestId, operation, "error while sending response.");
+                return null;
             }
+
+            chaos.completed(requestId);
+            return processedRequest;
+
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
+        } catch (IOException e) {
+            log.error(requestId, operation, "could not write journal: " + e.getMessage());
+            throw new RemoteException("Journal unavailable", e);
         }
     }
 
-    @Override
-    public synchronized Map<String, String> withdraw(long requestId, long accountId, Double amount) throws RemoteException {
-        logMessage("\n#" + requestId + " - withdraw request received.");
-
-        try {
-            if (!requestLog.containsKey(requestId)) {
-
-                logMessage("#" + requestId + " - processing request...");
-                Thread.sleep((long) (Math.random() * MAX_SLEEP));
-
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while processing request!", RED);
-                    return null;
-                }
-
-                Map<String, String> processedRequest;
-
-                if (balance.containsKey(accountId)) {
-                    if (balance.get(accountId) >= amount) {
-                        balance.put(accountId, balance.get(accountId) - amount);
-
-                        processedRequest = Map.of(
-                                "success", "true",
-                                "message", "Withdrew " + amount + " successfully from account #" + accountId);
+    /**
+     * Runs a batch in a single pass. Operations are grouped by account, keeping
+     * their order inside each account, so every account lock is taken once per
+     * batch, or applied in order as a single entry of the engine's ring; the
+     * whole batch then waits for a single journal flush. Each entry is
+     * deduplicated on its own request id.
+     */
+    private List<OperationResult> handleBatch(String operation, List<BatchOperation> operations,
+            Set<OperationType> allowed) throws RemoteException {
+        if (operations == null || operations.isEmpty()) {
+            return List.of();
+        }
+        if (operations.size() > MAX_BATCH) {
+            throw new RemoteException("Batch of " + operations.size() + " operations exceeds " + MAX_BATCH);
+        }
 
-                        logMessage("#" + requestId + " - withdraw request processed successfully!", GREEN);
-                    } else {
-                        processedRequest = Map.of(
-                                "success", "false",
-                                "message", "Insufficient funds in account #" + accountId);
+        log.debug(AsyncLogger.NO_REQUEST, operation, "request received.");
 
-                        logMessage("#" + requestId + " - withdraw request could not be processed!", RED);
-                    }
-                } else {
-                    processedRequest = Map.of(
-                            "success", "false",
-                            "message", "Account #" + accountId + " not found");
+        try {
+            // A batch has no request id of its own; its entries' ids stand in.
+            long batchId = 0;
+            for (BatchOperation op : operations) {
+                batchId = 31 * batchId + op.getRequestId();
+            }
+            int attempt = chaos.attempt(batchId);
 
-                    logMessage("#" + requestId + " - withdraw request could not be processed!", RED);
-                }
+            long sleep = 0;
+            for (BatchOperation op : operations) {
+                sleep = Math.max(sleep, chaos.latency(op.getType(), op.getRequestId(), attempt));
+            }
 
-                requestLog.put(requestId, processedRequest);
+            log.debug(AsyncLogger.NO_REQUEST, operation, "processing request...");
+            simulateWork(sleep);
 
-                logMessage("#" + requestId + " - sending response to client...");
+            if (chaos.failProcessing(null, batchId, attempt)) {
+                metrics.processingFailure();
+                log.warn(AsyncLogger.NO_REQUEST, operation, "error while processing request!");
+                return null;
+            }
 
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while sending response.", RED);
-                    return null;
-                }
+            List<OperationResult> replies = new ArrayList<>(Collections.nCopies(operations.size(), null));
+            BatchApplied applied = engine != null
+                    // The whole batch is one entry of the ring.
+                    ? engine.execute(() -> applyBatchInOrder(operations, allowed, replies), BatchApplied::seq)
+                    : applyBatchLocked(operations, allowed, replies);
+            int repeated = applied.repeated();
+            awaitDurable(applied.seq());
+            metrics.operations(operations.size());
+            metrics.dedupeHits(repeated);
+
+            if (log.isEnabled(AsyncLogger.Level.INFO)) {
+                log.info(AsyncLogger.NO_REQUEST, operation,
+                        "processed " + operations.size() + " operations, " + repeated + " repeated.");
+            }
+            log.debug(AsyncLogger.NO_REQUEST, operation, "sending response to client...");
 
-                return processedRequest;
+            if (chaos.failResponse(null, batchId, attempt)) {
+                metrics.responseFailure();
+                log.warn(AsyncLogger.NO_REQUEST, operation, "error while sending response.");
+                return null;
+            }
 
-            } else {
-                logMessage("#" + requestId + " - withdraw request is repeated", YELLOW);
-                logMessage("#" + requestId + " - sending response to client again...");
+            chaos.completed(batchId);
+            return replies;
 
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while sending response.", RED);
-                    return null;
-                }
-
-                return requestLog.get(requestId);
-            }
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
+        } catch (IOException e) {
+            log.error(AsyncLogger.NO_REQUEST, operation, "could not write journal: " + e.getMessage());
+            throw new RemoteException("Journal unavailable", e);
         }
     }
 
-    @Override
-    public synchronized Map<String, String> getBalance(long requestId, long accountId) throws RemoteException {
-        logMessage("\n#" + requestId + " - get_balance request received.");
-
-        try {
-            if (!requestLog.containsKey(requestId)) {
+    /**
+     * Applies a batch grouped by account, keeping the order inside each
+     * account, so every account lock is taken once.
+     */
+    private static BatchApplied applyBatchLocked(List<BatchOperation> operations, Set<OperationType> allowed,
+            List<OperationResult> replies) throws RemoteException {
+        Integer[] order = new Integer[operations.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // Stable, so operations on the same account keep their relative order.
+        Arrays.sort(order, Comparator.comparingLong(i -> operations.get(i).getAccountId()));
+
+        long seq = journal.lastSequence();
+        int repeated = 0;
+        int i = 0;
+        while (i < order.length) {
+            long accountId = operations.get(order[i]).getAccountId();
+            ReentrantLock lock = locks.lockFor(accountId);
+            lock(lock);
+            try {
+                for (; i < order.length && operations.get(order[i]).getAccountId() == accountId; i++) {
+                    BatchOperation op = operations.get(order[i]);
+                    Applied applied = applyBatchOperation(op, allowed);
+                    replies.set(order[i], applied.reply());
+                    seq = Math.max(seq, applied.seq());
+                    if (applied.repeated()) {
+                        repeated++;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return new BatchApplied(seq, repeated);
+    }
 
-                logMessage("#" + requestId + " - processing request...");
-                Thread.sleep((long) (Math.random() * MAX_SLEEP));
+    /**
+     * Applies a batch in the order sent, on the engine's business thread.
+     */
+    private static BatchApplied applyBatchInOrder(List<BatchOperation> operations, Set<OperationType> allowed,
+            List<OperationResult> replies) throws RemoteException {
+        long seq = journal.lastSequence();
+        int repeated = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            Applied applied = applyBatchOperation(operations.get(i), allowed);
+            replies.set(i, applied.reply());
+            seq = Math.max(seq, applied.seq());
+            if (applied.repeated()) {
+                repeated++;
+            }
+        }
+        return new BatchApplied(seq, repeated);
+    }
 
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while processing request!", RED);
-                    return null;
-                }
+    // Caller holds the lock of op's account, or runs on the engine's business thread.
+    private static Applied applyBatchOperation(BatchOperation op, Set<OperationType> allowed)
+            throws RemoteException {
+        long requestId = op.getRequestId();
+        long accountId = op.getAccountId();
 
-                Map<String, String> processedRequest;
+        if (!allowed.contains(op.getType())) {
+            return new Applied(result(OperationResult.Status.NOT_ALLOWED, op.getType(), accountId, 0, 0), 0, false);
+        }
+        if (!owns(accountId)) {
+            return new Applied(result(OperationResult.Status.WRONG_SHARD, op.getType(), accountId, 0, 0), 0, false);
+        }
+        OperationResult processed = requestLog.get(requestId);
+        if (processed != null) {
+            return new Applied(processed.asReplayed(), journal.lastSequence(), true);
+        }
 
-                if (balance.containsKey(accountId)) {
-                    processedRequest = Map.of(
-                            "success", "true",
-                            "message", "Balance for account #" + accountId + ": $" + balance.get(accountId));
+        switch (op.getType()) {
+            case DEPOSIT: {
+                long cents = toCents(op.getAmount());
+                return applyLocked(Journal.DEPOSIT, requestId, accountId, cents,
+                        () -> applyDeposit(accountId, cents));
+            }
+            case WITHDRAW: {
+                long cents = toCents(op.getAmount());
+                return applyLocked(Journal.WITHDRAW, requestId, accountId, cents,
+                        () -> applyWithdraw(accountId, cents));
+            }
+            case GET_BALANCE:
+                return applyLocked(READ_ONLY, requestId, accountId, 0, () -> applyGetBalance(accountId));
+            case CREATE_ACCOUNT:
+                return applyLocked(Journal.CREATE_ACCOUNT, requestId, accountId, 0,
+                        () -> applyCreateAccount(accountId));
+            case DELETE_ACCOUNT:
+                return applyLocked(Journal.DELETE_ACCOUNT, requestId, accountId, 0,
+                        () -> applyDeleteAccount(accountId));
+            case GET_ACCOUNT_INFO:
+                return applyLocked(READ_ONLY, requestId, accountId, 0, () -> applyGetAccountInfo(accountId));
+            default:
+                throw new IllegalStateException("Unknown operation " + op.getType());
+        }
+    }
 
-                    logMessage("#" + requestId + " - get_balance request processed successfully!", GREEN);
-                } else {
-                    processedRequest = Map.of(
-                            "success", "false",
-                            "message", "Account #" + accountId + " not found");
+    /**
+     * Dedupes and applies one operation, records its reply and journals it.
+     * The reply carries the version it reflects: its own record for a
+     * mutation, the latest one for a read. Caller holds the account's lock, or
+     * runs on the engine's business thread.
+     */
+    private static Applied applyLocked(byte journalType, long requestId, long accountId, long amount,
+            RequestHandler handler) throws RemoteException {
+        return applyLocked(journalType, requestId, accountId, 0, amount, handler);
+    }
 
-                    logMessage("#" + requestId + " - get_balance request could not be processed!", RED);
-                }
+    /**
+     * Same as above with the destination of a transfer, whose lock the caller
+     * holds too. The record names the account the reply is about.
+     */
+    private static Applied applyLocked(byte journalType, long requestId, long accountId, long toAccountId,
+            long amount, RequestHandler handler) throws RemoteException {
+        // Callers already counted the lookup; this one only closes the race
+        // with a retry of the same request.
+        OperationResult reply = requestLog.peek(requestId);
+        if (reply != null) {
+            return new Applied(reply.asReplayed(), journal.lastSequence(), true);
+        }
 
-                requestLog.put(requestId, processedRequest);
+        reply = handler.handle();
+
+        long seq = 0;
+        if (journalType == Journal.TRANSFER) {
+            seq = journal.append(journalType, System.currentTimeMillis(), requestId, reply.getAccountId(), amount,
+                    balanceAfter(reply.getAccountId()), (byte) reply.getStatus().ordinal(), toAccountId,
+                    balanceAfter(toAccountId));
+            reply = reply.withVersion(ReplicationPrimary.version(epoch, seq));
+        } else if (journalType != READ_ONLY) {
+            seq = journal.append(journalType, System.currentTimeMillis(), requestId, accountId, amount,
+                    balanceAfter(accountId), (byte) reply.getStatus().ordinal());
+            reply = reply.withVersion(ReplicationPrimary.version(epoch, seq));
+        } else {
+            reply = reply.withVersion(currentVersion());
+        }
+        requestLog.put(requestId, reply);
+        return new Applied(reply, seq, false);
+    }
 
-                logMessage("#" + requestId + " - sending response to client...");
+    private static long balanceAfter(long accountId) {
+        long current = balance.get(accountId);
+        return current == AccountStore.ABSENT ? 0 : current;
+    }
 
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while sending response.", RED);
-                    return null;
-                }
+    /**
+     * Takes the locks of two accounts, which may share a stripe. Stripes are
+     * always taken in index order, so two transfers in opposite directions
+     * cannot deadlock.
+     */
+    private static void lock(long accountId, long otherAccountId) {
+        int index = locks.indexFor(accountId);
+        int otherIndex = locks.indexFor(otherAccountId);
+        lock(locks.lockFor(index <= otherIndex ? accountId : otherAccountId));
+        if (index != otherIndex) {
+            lock(locks.lockFor(index < otherIndex ? otherAccountId : accountId));
+        }
+    }
 
-                return processedRequest;
+    private static void unlock(long accountId, long otherAccountId) {
+        locks.lockFor(accountId).unlock();
+        if (locks.indexFor(accountId) != locks.indexFor(otherAccountId)) {
+            locks.lockFor(otherAccountId).unlock();
+        }
+    }
 
-            } else {
-                logMessage("#" + requestId + " - get_balance request is repeated", YELLOW);
-                logMessage("#" + requestId + " - sending response to client again...");
+    /**
+     * Takes an account lock, timing the wait only when it is contended.
+     */
+    private static void lock(ReentrantLock lock) {
+        if (lock.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        metrics.lockWait(System.nanoTime() - start);
+    }
 
-                if (Math.random() < ERROR_RATE) {
-                    logMessage("#" + requestId + " - error while sending response.", RED);
-                    return null;
-                }
+    /**
+     * Waits until records up to {@code seq} are on disk and, with synchronous
+     * replication, applied by a backup.
+     */
+    private static void awaitDurable(long seq) throws IOException, InterruptedException {
+        journal.awaitDurable(seq);
+        ReplicationPrimary primary = replication;
+        if (REPLICATION_SYNC && primary != null) {
+            primary.awaitAcked(seq, REPLICATION_ACK_TIMEOUT);
+        }
+    }
 
-                return requestLog.get(requestId);
-            }
-        } catch (InterruptedException e) {
-            return null;
+    private static void simulateWork(long sleep) throws InterruptedException {
+        if (sleep > 0) {
+            Thread.sleep(sleep);
         }
     }
 
@@ -446,29 +1085,186 @@ public class Server extends UnicastRemoteObject implements IAtmRemote, IBranchRe
                 new ProcessBuilder("clear").inheritIO().start().waitFor();
             }
         } catch (Exception e) {
-            logMessage("Could not clear the console.", RESET);
+            log.warn("Could not clear the console.");
         }
     }
 
-    private static void logMessage(String message, String color) {
-        System.out.println(color + message + RESET);
+    private static AsyncLogger openLogger() {
+        int capacity = Integer.getInteger("server.log.buffer", 8192);
+        String file = System.getProperty("server.log.file", "logs/server" + SHARD_SUFFIX + ROLE_SUFFIX + ".log");
+        AsyncLogger.Level fileLevel = AsyncLogger.Level.valueOf(System.getProperty("server.log.level", "INFO"));
+        AsyncLogger.Level consoleLevel = AsyncLogger.Level.valueOf(System.getProperty("server.log.console", "INFO"));
+        Writer writer = null;
+        if (!file.isEmpty()) {
+            try {
+                writer = AsyncLogger.openFile(Path.of(file));
+            } catch (IOException e) {
+                System.err.println("Could not open log file " + file + ": " + e.getMessage());
+            }
+        }
+        return new AsyncLogger(capacity, writer, fileLevel, System.out, consoleLevel);
     }
 
-    private static void logMessage(String message) {
-        System.out.println(message);
+    /**
+     * Runs a request on the request executor. When too many requests are
+     * already in flight it is refused with {@code BUSY}, which is not recorded
+     * in the request log, so the client may retry it with the same id.
+     * Accounts of other shards are answered with {@code WRONG_SHARD}, also
+     * unrecorded.
+     */
+    private OperationResult executeRequest(OperationType operation, long accountId, RequestHandler handler)
+            throws RemoteException {
+        if (!owns(accountId)) {
+            return result(OperationResult.Status.WRONG_SHARD, operation, accountId, 0, 0);
+        }
+        long start = System.nanoTime();
+        try {
+            return executor.call(handler::handle,
+                    () -> result(OperationResult.Status.BUSY, operation, accountId, 0, 0));
+        } catch (RemoteException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RemoteException("Error executing request", e);
+        } finally {
+            metrics.request(operation, System.nanoTime() - start);
+        }
     }
 
-    private Map<String, String> executeRequest(RequestHandler handler) throws RemoteException {
+    private List<OperationResult> executeBatchRequest(List<BatchOperation> operations, BatchHandler handler)
+            throws RemoteException {
+        checkBatch(operations);
+        long start = System.nanoTime();
         try {
-            Future<Map<String, String>> future = executorService.submit(handler::handle);
-            return future.get();
+            return executor.call(handler::handle, () -> busy(operations));
+        } catch (RemoteException e) {
+            throw e;
         } catch (Exception e) {
             throw new RemoteException("Error executing request", e);
+        } finally {
+            metrics.request(null, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Rejects a batch with a missing entry or an entry without a type before
+     * any of it runs, since no reply could name its operation.
+     */
+    private static void checkBatch(List<BatchOperation> operations) throws RemoteException {
+        if (operations == null) {
+            return;
+        }
+        for (int i = 0; i < operations.size(); i++) {
+            BatchOperation op = operations.get(i);
+            if (op == null || op.getType() == null) {
+                throw new RemoteException("Batch entry " + i + (op == null ? " is missing" : " has no operation type"));
+            }
+        }
+    }
+
+    private static List<OperationResult> busy(List<BatchOperation> operations) {
+        List<OperationResult> replies = new ArrayList<>(operations.size());
+        for (BatchOperation op : operations) {
+            replies.add(result(OperationResult.Status.BUSY, op.getType(), op.getAccountId(), 0, 0));
+        }
+        return replies;
+    }
+
+    private record Applied(OperationResult reply, long seq, boolean repeated) {
+    }
+
+    private record BatchApplied(long seq, int repeated) {
+    }
+
+    /**
+     * Read-only entry point of a follower. It is exported on its own, so the
+     * stub clients get implements nothing but {@link IReadRemote}; the
+     * follower's state only ever changes through replication.
+     */
+    private static final class ReadServer extends UnicastRemoteObject implements IReadRemote {
+
+        private static final long serialVersionUID = 1L;
+
+        ReadServer() throws RemoteException {
+            super();
+        }
+
+        @Override
+        public OperationResult getBalance(long requestId, long accountId, long minVersion) throws RemoteException {
+            if (isStale(minVersion)) {
+                return result(OperationResult.Status.STALE, OperationType.GET_BALANCE, accountId, 0, 0);
+            }
+            return server.getBalance(requestId, accountId);
+        }
+
+        @Override
+        public OperationResult getAccountInfo(long requestId, long accountId, long minVersion) throws RemoteException {
+            if (isStale(minVersion)) {
+                return result(OperationResult.Status.STALE, OperationType.GET_ACCOUNT_INFO, accountId, 0, 0);
+            }
+            return server.getAccountInfo(requestId, accountId);
+        }
+    }
+
+    /**
+     * Applies the primary's snapshot and records to this backup, journaling
+     * them locally so the backup can restart or take over with the same state.
+     */
+    private static final class BackupApplier implements ReplicationBackup.Applier {
+
+        @Override
+        public void load(InputStream in) throws IOException {
+            balance.clear();
+            long segment = Snapshots.read(in, balance, requestLog);
+            log.info("Snapshot " + segment + " from primary: " + balance.size() + " accounts");
+            // Persist it, since older local segments no longer apply.
+            checkpointedSeq = -1;
+            checkpoint();
+        }
+
+        @Override
+        public void apply(ByteBuffer frames) throws IOException, InterruptedException {
+            long[] seq = new long[1];
+            Journal.replay(frames, (type, timestamp, requestId, accountId, amount, balanceAfter, status, toAccountId,
+                    toBalanceAfter) -> {
+                long otherAccountId = type == Journal.TRANSFER ? toAccountId : accountId;
+                lock(accountId, otherAccountId);
+                try {
+                    applyRecord(type, timestamp, requestId, accountId, amount, balanceAfter, status, toAccountId,
+                            toBalanceAfter);
+                    seq[0] = journal.append(type, timestamp, requestId, accountId, amount, balanceAfter, status,
+                            toAccountId, toBalanceAfter);
+                } finally {
+                    unlock(accountId, otherAccountId);
+                }
+            });
+            journal.awaitDurable(seq[0]);
+        }
+
+        @Override
+        public boolean takeOver(long primaryEpoch) {
+            try {
+                startEpoch(primaryEpoch);
+                serve();
+                return true;
+            } catch (Exception e) {
+                log.warn("Could not take over: " + e.getMessage());
+                return false;
+            }
         }
     }
 
     @FunctionalInterface
     private interface RequestHandler {
-        Map<String, String> handle() throws RemoteException;
+        OperationResult handle() throws RemoteException;
+    }
+
+    @FunctionalInterface
+    private interface LockedStep {
+        Applied apply() throws RemoteException;
+    }
+
+    @FunctionalInterface
+    private interface BatchHandler {
+        List<OperationResult> handle() throws RemoteException;
     }
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+package com.pucrs;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * JMX administration operations, delegating to the server.
+ */
+final class ServerAdmin implements ServerAdminMXBean {
+
+    static final String NAME = "com.pucrs:type=Server,name=Admin";
+
+    /**
+     * Runs a bulk load and describes its result.
+     */
+    @FunctionalInterface
+    interface Loader {
+        String load(String file) throws IOException;
+    }
+
+    private final Loader loader;
+
+    ServerAdmin(Loader loader) {
+        this.loader = loader;
+    }
+
+    void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+    }
+
+    @Override
+    public String bulkLoad(String file) throws IOException {
+        return loader.load(file);
+    }
+}
@@ -0,0 +1,16 @@
+package com.pucrs;
+
+import java.io.IOException;
+
+/**
+ * Server administration, registered as {@code com.pucrs:type=Server,name=Admin}
+ * on a primary and callable from jconsole or any other JMX client.
+ */
+public interface ServerAdminMXBean {
+
+    /**
+     * Loads opening balances from {@code file} on the server's disk, see
+     * {@link BulkLoader}, and returns a summary of the rows loaded and rejected.
+     */
+    String bulkLoad(String file) throws IOException;
+}
@@ -0,0 +1,178 @@
+package com.pucrs;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.pucrs.interfaces.OperationType;
+
+/**
+ * Counters and latency histograms updated on the request path. Recording only
+ * touches {@link LongAdder}s and {@link LatencyHistogram}s, so it never blocks
+ * and adds no shared lock to the hot path.
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+
+    static final String NAME = "com.pucrs:type=Server,name=Metrics";
+
+    private static final OperationType[] TYPES = OperationType.values();
+    // Index of batches, after the operation types.
+    private static final int BATCH = TYPES.length;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[TYPES.length + 1];
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder dedupeHits = new LongAdder();
+    private final LongAdder processingFailures = new LongAdder();
+    private final LongAdder responseFailures = new LongAdder();
+    private final LongSupplier accounts;
+    private final IntSupplier requestLogSize;
+    private final RequestExecutor executor;
+    private volatile long rejectedAtReset;
+    private volatile long since = System.nanoTime();
+
+    ServerMetrics(LongSupplier accounts, IntSupplier requestLogSize, RequestExecutor executor) {
+        this.accounts = accounts;
+        this.requestLogSize = requestLogSize;
+        this.executor = executor;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+    }
+
+    /**
+     * Records a request from arrival to reply; a null type means a batch.
+     */
+    void request(OperationType type, long nanos) {
+        latencies[type == null ? BATCH : type.ordinal()].record(nanos);
+    }
+
+    /**
+     * Counts operations that reached the request log, batch entries included.
+     */
+    void operations(int count) {
+        operations.add(count);
+    }
+
+    void dedupeHits(int count) {
+        dedupeHits.add(count);
+    }
+
+    void processingFailure() {
+        processingFailures.increment();
+    }
+
+    void responseFailure() {
+        responseFailures.increment();
+    }
+
+    void lockWait(long nanos) {
+        lockWait.record(nanos);
+    }
+
+    @Override
+    public Map<String, OperationStats> getOperations() {
+        double seconds = seconds();
+        Map<String, OperationStats> stats = new LinkedHashMap<>();
+        for (int i = 0; i < latencies.length; i++) {
+            stats.put(i == BATCH ? "BATCH" : TYPES[i].name(), new OperationStats(latencies[i].snapshot(), seconds));
+        }
+        return stats;
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (LatencyHistogram latency : latencies) {
+            requests += latency.snapshot().count();
+        }
+        return requests;
+    }
+
+    @Override
+    public double getThroughput() {
+        double seconds = seconds();
+        return seconds > 0 ? getRequests() / seconds : 0;
+    }
+
+    @Override
+    public long getRejected() {
+        return executor.rejected() - rejectedAtReset;
+    }
+
+    @Override
+    public int getInFlight() {
+        return executor.inFlight();
+    }
+
+    @Override
+    public long getDedupeHits() {
+        return dedupeHits.sum();
+    }
+
+    @Override
+    public double getDedupeHitRate() {
+        long total = operations.sum();
+        return total == 0 ? 0 : (double) dedupeHits.sum() / total;
+    }
+
+    @Override
+    public long getInjectedProcessingFailures() {
+        return processingFailures.sum();
+    }
+
+    @Override
+    public long getInjectedResponseFailures() {
+        return responseFailures.sum();
+    }
+
+    @Override
+    public OperationStats getLockWait() {
+        return new OperationStats(lockWait.snapshot(), seconds());
+    }
+
+    @Override
+    public long getAccounts() {
+        return accounts.getAsLong();
+    }
+
+    @Override
+    public int getRequestLogSize() {
+        return requestLogSize.getAsInt();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram latency : latencies) {
+            latency.reset();
+        }
+        lockWait.reset();
+        operations.reset();
+        dedupeHits.reset();
+        processingFailures.reset();
+        responseFailures.reset();
+        rejectedAtReset = executor.rejected();
+        since = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("metrics: requests=%d %.1f/s dedupeHitRate=%.3f injectedFailures=%d/%d lockWait=[%s]",
+                getRequests(), getThroughput(), getDedupeHitRate(), getInjectedProcessingFailures(),
+                getInjectedResponseFailures(), getLockWait());
+    }
+
+    private double seconds() {
+        return (System.nanoTime() - since) / 1e9;
+    }
+}
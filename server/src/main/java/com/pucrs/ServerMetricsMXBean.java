@@ -0,0 +1,107 @@
+package com.pucrs;
+
+import java.util.Map;
+
+/**
+ * Server metrics, registered as {@code com.pucrs:type=Server,name=Metrics}
+ * and readable with jconsole or any other JMX client. Counters cover the time
+ * since startup or the last {@link #reset()}.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * Requests, throughput and latency per operation, keyed by operation
+     * name; batches are listed as {@code BATCH}.
+     */
+    Map<String, OperationStats> getOperations();
+
+    long getRequests();
+
+    double getThroughput();
+
+    long getRejected();
+
+    int getInFlight();
+
+    /**
+     * Operations answered from the request log because their request id had
+     * already been processed.
+     */
+    long getDedupeHits();
+
+    double getDedupeHitRate();
+
+    long getInjectedProcessingFailures();
+
+    long getInjectedResponseFailures();
+
+    /**
+     * Time spent waiting for contended account locks; uncontended locks are
+     * not counted.
+     */
+    OperationStats getLockWait();
+
+    long getAccounts();
+
+    int getRequestLogSize();
+
+    void reset();
+
+    /**
+     * Count and latency of one kind of request. Latencies are in milliseconds.
+     */
+    class OperationStats {
+
+        private final long count;
+        private final double throughput;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double maxMillis;
+
+        OperationStats(LatencyHistogram.Snapshot snapshot, double seconds) {
+            this.count = snapshot.count();
+            this.throughput = seconds > 0 ? count / seconds : 0;
+            this.meanMillis = snapshot.mean() / 1e6;
+            this.p50Millis = snapshot.percentile(50) / 1e6;
+            this.p99Millis = snapshot.percentile(99) / 1e6;
+            this.p999Millis = snapshot.percentile(99.9) / 1e6;
+            this.maxMillis = snapshot.max() / 1e6;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getThroughput() {
+            return throughput;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getP999Millis() {
+            return p999Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d %.1f/s mean=%.2fms p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                    count, throughput, meanMillis, p50Millis, p99Millis, p999Millis, maxMillis);
+        }
+    }
+}
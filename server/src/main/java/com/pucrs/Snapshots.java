@@ -0,0 +1,261 @@
+package com.pucrs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.OperationType;
+
+/**
+ * Point-in-time copies of the account table and the request log.
+ *
+ * <p>A snapshot is named after the journal segment that was started right
+ * before it was taken. It is written while requests keep running, so it may
+ * already contain some changes from that segment; since journal records hold
+ * absolute balances, replaying the segment over the snapshot still ends in
+ * the right state.
+ */
+final class Snapshots {
+
+    private static final int MAGIC = 0x534e4150;
+    private static final int VERSION = 3;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+    private static final int BUFFER = 64 * 1024;
+
+    private static final OperationResult.Status[] STATUSES = OperationResult.Status.values();
+    private static final OperationType[] OPERATIONS = OperationType.values();
+
+    private Snapshots() {
+    }
+
+    /**
+     * Writes a snapshot for {@code segment} and atomically moves it into place.
+     * Returns the number of accounts written.
+     */
+    static long write(Path dir, long segment, AccountStore balance,
+            IdempotencyCache<OperationResult> requestLog) throws IOException {
+        Path target = file(dir, segment);
+        Path temp = dir.resolve(target.getFileName() + ".tmp");
+
+        long written;
+        try (OutputStream stream = Files.newOutputStream(temp)) {
+            written = write(stream, segment, balance, requestLog);
+        }
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return written;
+    }
+
+    /**
+     * Writes a snapshot for {@code segment} to {@code stream}, which is left
+     * open. Returns the number of accounts written.
+     */
+    static long write(OutputStream stream, long segment, AccountStore balance,
+            IdempotencyCache<OperationResult> requestLog) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new CheckedOutputStream(stream, crc), BUFFER));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(segment);
+        out.writeLong(System.currentTimeMillis());
+
+        long[] accounts = new long[1];
+        IOException[] failure = new IOException[1];
+        balance.forEach((accountId, amount) -> {
+            if (failure[0] != null) {
+                return;
+            }
+            try {
+                out.writeBoolean(true);
+                out.writeLong(accountId);
+                out.writeLong(amount);
+                accounts[0]++;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        out.writeBoolean(false);
+
+        requestLog.forEach((requestId, reply, storedAt) -> {
+            if (failure[0] != null) {
+                return;
+            }
+            try {
+                out.writeBoolean(true);
+                out.writeLong(requestId);
+                out.writeLong(storedAt);
+                out.writeByte(reply.getStatus().ordinal());
+                out.writeByte(reply.getOperation().ordinal());
+                out.writeLong(reply.getAccountId());
+                out.writeLong(reply.getAmount());
+                out.writeLong(reply.getBalance());
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        out.writeBoolean(false);
+
+        out.flush();
+        stream.write(intBytes((int) crc.getValue()));
+        return accounts[0];
+    }
+
+    /**
+     * Loads a snapshot sent with {@link #write(OutputStream, long, AccountStore,
+     * IdempotencyCache)} and returns its segment. The checksum is only known
+     * at the end, so on failure part of the snapshot may already be loaded.
+     */
+    static long read(InputStream stream, AccountStore balance,
+            IdempotencyCache<OperationResult> requestLog) throws IOException {
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(stream, crc));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a snapshot");
+        }
+        long segment = in.readLong();
+        in.readLong();
+        readEntries(in, balance, requestLog);
+        int expected = (int) crc.getValue();
+        if (new DataInputStream(stream).readInt() != expected) {
+            throw new IOException("Corrupt snapshot");
+        }
+        return segment;
+    }
+
+    /**
+     * Loads the newest intact snapshot of {@code dir} and returns the journal
+     * segment replay has to start from, or 0 when there is no usable snapshot.
+     * Accounts are skipped when {@code balance} is null.
+     */
+    static long loadLatest(Path dir, AccountStore balance,
+            IdempotencyCache<OperationResult> requestLog) throws IOException {
+        List<Long> snapshots = list(dir);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            long segment = snapshots.get(i);
+            if (verify(file(dir, segment))) {
+                load(file(dir, segment), balance, requestLog);
+                return segment;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Deletes every snapshot older than {@code segment}, along with leftovers of
+     * interrupted writes.
+     */
+    static void deleteBefore(Path dir, long segment) throws IOException {
+        for (long number : list(dir)) {
+            if (number < segment) {
+                Files.deleteIfExists(file(dir, number));
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX + ".tmp")) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private static void load(Path file, AccountStore balance,
+            IdempotencyCache<OperationResult> requestLog) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER))) {
+            in.readInt();
+            in.readInt();
+            in.readLong();
+            in.readLong();
+            readEntries(in, balance, requestLog);
+        }
+    }
+
+    private static void readEntries(DataInputStream in, AccountStore balance,
+            IdempotencyCache<OperationResult> requestLog) throws IOException {
+        while (in.readBoolean()) {
+            long accountId = in.readLong();
+            long amount = in.readLong();
+            if (balance != null) {
+                balance.put(accountId, amount);
+            }
+        }
+
+        while (in.readBoolean()) {
+            long requestId = in.readLong();
+            long storedAt = in.readLong();
+            OperationResult.Status status = STATUSES[in.readByte()];
+            OperationType operation = OPERATIONS[in.readByte()];
+            requestLog.put(requestId, new OperationResult(status, operation, in.readLong(), in.readLong(),
+                    in.readLong()), storedAt);
+        }
+    }
+
+    private static boolean verify(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size < 4 + 4 + 8 + 8 + 4) {
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        try (DataInputStream raw = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER))) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            in.skipNBytes(size - 4 - 4 - 4);
+            return (int) crc.getValue() == raw.readInt();
+        }
+    }
+
+    private static List<Long> list(Path dir) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return numbers;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> numbers.add(Long.parseLong(
+                            name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private static Path file(Path dir, long segment) {
+        return dir.resolve(String.format("%s%016d%s", PREFIX, segment, SUFFIX));
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+}
@@ -0,0 +1,69 @@
+package com.pucrs.interfaces;
+
+import java.io.Serializable;
+
+/**
+ * One entry of a batch submitted through {@link IAtmRemote#executeBatch} or
+ * {@link IBranchRemote#executeBranchBatch}. Every entry carries its own request
+ * id and is deduplicated on its own, exactly like a single call.
+ */
+public class BatchOperation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OperationType type;
+    private final long requestId;
+    private final long accountId;
+    private final Double amount;
+
+    private BatchOperation(OperationType type, long requestId, long accountId, Double amount) {
+        this.type = type;
+        this.requestId = requestId;
+        this.accountId = accountId;
+        this.amount = amount;
+    }
+
+    public static BatchOperation of(OperationType type, long requestId, long accountId, Double amount) {
+        return new BatchOperation(type, requestId, accountId, amount);
+    }
+
+    public static BatchOperation deposit(long requestId, long accountId, double amount) {
+        return new BatchOperation(OperationType.DEPOSIT, requestId, accountId, amount);
+    }
+
+    public static BatchOperation withdraw(long requestId, long accountId, double amount) {
+        return new BatchOperation(OperationType.WITHDRAW, requestId, accountId, amount);
+    }
+
+    public static BatchOperation getBalance(long requestId, long accountId) {
+        return new BatchOperation(OperationType.GET_BALANCE, requestId, accountId, null);
+    }
+
+    public static BatchOperation createAccount(long requestId, long accountId) {
+        return new BatchOperation(OperationType.CREATE_ACCOUNT, requestId, accountId, null);
+    }
+
+    public static BatchOperation deleteAccount(long requestId, long accountId) {
+        return new BatchOperation(OperationType.DELETE_ACCOUNT, requestId, accountId, null);
+    }
+
+    public static BatchOperation getAccountInfo(long requestId, long accountId) {
+        return new BatchOperation(OperationType.GET_ACCOUNT_INFO, requestId, accountId, null);
+    }
+
+    public OperationType getType() {
+        return type;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public long getAccountId() {
+        return accountId;
+    }
+
+    public Double getAmount() {
+        return amount;
+    }
+}
@@ -0,0 +1,121 @@
+package com.pucrs.interfaces;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format of the binary transport, an alternative to RMI exposing the
+ * same operations. Every frame is {@code [int length][body]}.
+ *
+ * <p>A request body is {@code [long correlation][byte opcode]} followed, for a
+ * single operation, by {@code [long requestId][long accountId][double amount]}
+ * and, for a batch, by {@code [int count]} and that many
+ * {@code [byte type][long requestId][long accountId][double amount]}. Single
+ * operation opcodes are {@link OperationType} ordinals; a missing amount is
+ * sent as NaN. A transfer adds {@code [long toAccountId]} and cannot be
+ * batched.
+ *
+ * <p>A reply body is {@code [long correlation][byte kind]} followed by one
+ * result, a count and that many results, nothing (the server dropped the
+ * reply, like a null return over RMI) or an error message. Replies may come
+ * back in any order; the correlation id pairs them with their request.
+ */
+public final class BinaryProtocol {
+
+    public static final int MAX_FRAME = 1 << 20;
+
+    public static final byte BATCH = 100;
+    public static final byte BRANCH_BATCH = 101;
+
+    public static final byte REPLY_RESULT = 0;
+    public static final byte REPLY_RESULTS = 1;
+    public static final byte REPLY_EMPTY = 2;
+    public static final byte REPLY_ERROR = 3;
+
+    public static final int OPERATION_BYTES = 1 + 8 + 8 + 8;
+    public static final int RESULT_BYTES = 1 + 1 + 8 + 8 + 8 + 8;
+
+    private static final OperationType[] OPERATIONS = OperationType.values();
+    private static final OperationResult.Status[] STATUSES = OperationResult.Status.values();
+
+    private BinaryProtocol() {
+    }
+
+    public static OperationType operation(byte opcode) {
+        return OPERATIONS[opcode];
+    }
+
+    public static void writeOperation(ByteBuffer buffer, BatchOperation op) {
+        buffer.put((byte) op.getType().ordinal())
+                .putLong(op.getRequestId())
+                .putLong(op.getAccountId())
+                .putDouble(op.getAmount() == null ? Double.NaN : op.getAmount());
+    }
+
+    public static BatchOperation readOperation(ByteBuffer buffer) {
+        OperationType type = OPERATIONS[buffer.get()];
+        long requestId = buffer.getLong();
+        long accountId = buffer.getLong();
+        return BatchOperation.of(type, requestId, accountId, amount(buffer.getDouble()));
+    }
+
+    public static List<BatchOperation> readOperations(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / OPERATION_BYTES) {
+            throw new IllegalArgumentException("Bad operation count " + count);
+        }
+        List<BatchOperation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            operations.add(readOperation(buffer));
+        }
+        return operations;
+    }
+
+    public static void writeResult(ByteBuffer buffer, OperationResult result) {
+        buffer.put((byte) (result.getStatus().ordinal() | (result.isReplayed() ? OperationResult.REPLAYED : 0)))
+                .put(result.getOperation() == null ? OperationResult.NO_OPERATION
+                        : (byte) result.getOperation().ordinal())
+                .putLong(result.getAccountId())
+                .putLong(result.getAmount())
+                .putLong(result.getBalance())
+                .putLong(result.getVersion());
+    }
+
+    public static OperationResult readResult(ByteBuffer buffer) {
+        int flags = buffer.get() & 0xFF;
+        byte type = buffer.get();
+        OperationType operation = type == OperationResult.NO_OPERATION ? null : OPERATIONS[type];
+        OperationResult result = new OperationResult(STATUSES[flags & ~OperationResult.REPLAYED], operation,
+                buffer.getLong(), buffer.getLong(), buffer.getLong()).withVersion(buffer.getLong());
+        return (flags & OperationResult.REPLAYED) != 0 ? result.asReplayed() : result;
+    }
+
+    public static List<OperationResult> readResults(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / RESULT_BYTES) {
+            throw new IllegalArgumentException("Bad result count " + count);
+        }
+        List<OperationResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(readResult(buffer));
+        }
+        return results;
+    }
+
+    public static void writeError(ByteBuffer buffer, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(text.length).put(text);
+    }
+
+    public static String readError(ByteBuffer buffer) {
+        byte[] text = new byte[buffer.getInt()];
+        buffer.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    public static Double amount(double wire) {
+        return Double.isNaN(wire) ? null : wire;
+    }
+}
@@ -0,0 +1,17 @@
+package com.pucrs.interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Reads served by a read replica, bound as {@code read-server}. A replica that
+ * has not applied {@code minVersion} yet, or has lost touch with its primary,
+ * answers {@link OperationResult.Status#STALE} instead of an older balance.
+ */
+public interface IReadRemote extends Remote {
+
+    OperationResult getBalance(long requestId, long accountId, long minVersion) throws RemoteException;
+
+    OperationResult getAccountInfo(long requestId, long accountId, long minVersion) throws RemoteException;
+
+}
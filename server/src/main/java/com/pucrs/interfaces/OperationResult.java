@@ -0,0 +1,204 @@
+package com.pucrs.interfaces;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Reply to one operation. Only codes and numbers travel over the wire; the
+ * human readable message is built on demand by {@link #getMessage()}.
+ * Amounts and balances are in cents.
+ */
+public class OperationResult implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Status {
+        OK, ACCOUNT_NOT_FOUND, ACCOUNT_EXISTS, INSUFFICIENT_FUNDS, INVALID_AMOUNT, NOT_ALLOWED,
+        // Refused because the server was saturated; not recorded, safe to retry.
+        BUSY,
+        // The account belongs to another shard; not recorded, resend it there.
+        WRONG_SHARD,
+        // A read replica has not caught up with the requested version; read from the primary.
+        STALE
+    }
+
+    // Set on the status byte of replies answered from the server's request log.
+    static final int REPLAYED = 0x80;
+    // Sent in place of the operation of a reply that has none, such as a
+    // rejected batch entry without a type.
+    static final byte NO_OPERATION = -1;
+
+    private static final Status[] STATUSES = Status.values();
+    private static final OperationType[] OPERATIONS = OperationType.values();
+
+    private Status status;
+    private OperationType operation;
+    private long accountId;
+    private long amount;
+    private long balance;
+    private boolean replayed;
+    private long version;
+
+    /**
+     * Only for deserialization.
+     */
+    public OperationResult() {
+    }
+
+    public OperationResult(Status status, OperationType operation, long accountId, long amount, long balance) {
+        this.status = status;
+        this.operation = operation;
+        this.accountId = accountId;
+        this.amount = amount;
+        this.balance = balance;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.OK;
+    }
+
+    public OperationType getOperation() {
+        return operation;
+    }
+
+    public long getAccountId() {
+        return accountId;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    /**
+     * Whether the server answered from its request log, meaning it had already
+     * applied this request id and this is the reply to a retry.
+     */
+    public boolean isReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Version of the server's state this reply reflects: the journal sequence
+     * of a write, or the last one applied when a read ran, above the run epoch
+     * of the shard's primary, so versions keep growing when the primary
+     * restarts or a backup takes over. Versions only compare within one
+     * shard; 0 means unknown.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Copy of this reply with {@code version} set.
+     */
+    public OperationResult withVersion(long version) {
+        OperationResult copy = new OperationResult(status, operation, accountId, amount, balance);
+        copy.replayed = replayed;
+        copy.version = version;
+        return copy;
+    }
+
+    /**
+     * Copy of this reply marked as replayed.
+     */
+    public OperationResult asReplayed() {
+        OperationResult copy = new OperationResult(status, operation, accountId, amount, balance);
+        copy.replayed = true;
+        copy.version = version;
+        return copy;
+    }
+
+    public String getMessage() {
+        switch (status) {
+            case OK:
+                return successMessage();
+            case ACCOUNT_NOT_FOUND:
+                if (operation == OperationType.DELETE_ACCOUNT) {
+                    return "Account #" + accountId + " don't removed!";
+                }
+                if (operation == OperationType.GET_ACCOUNT_INFO) {
+                    return "Account #" + accountId + " not exist!";
+                }
+                return "Account #" + accountId + " not found";
+            case ACCOUNT_EXISTS:
+                return "Account already exists #" + accountId;
+            case INSUFFICIENT_FUNDS:
+                return "Insufficient funds in account #" + accountId;
+            case INVALID_AMOUNT:
+                return "Invalid amount";
+            case NOT_ALLOWED:
+                return "Operation " + operation + " not allowed";
+            case BUSY:
+                return "Server is busy, try again later";
+            case WRONG_SHARD:
+                return "Account #" + accountId + " is served by another shard";
+            case STALE:
+                return "Replica is behind, read from the primary";
+            default:
+                return status.toString();
+        }
+    }
+
+    private String successMessage() {
+        switch (operation) {
+            case DEPOSIT:
+                return "Deposited " + formatCents(amount) + " successfully into account #" + accountId;
+            case WITHDRAW:
+                return "Withdrew " + formatCents(amount) + " successfully from account #" + accountId;
+            case GET_BALANCE:
+                return "Balance for account #" + accountId + ": $" + formatCents(balance);
+            case CREATE_ACCOUNT:
+                return "Account #" + accountId + " created successfully!";
+            case DELETE_ACCOUNT:
+                return "Account exists and were removed #" + accountId;
+            case GET_ACCOUNT_INFO:
+                return "Account info Account ID: #" + accountId + " Amount: " + formatCents(balance);
+            case TRANSFER:
+                return "Transferred " + formatCents(amount) + " successfully from account #" + accountId;
+            default:
+                return operation.toString();
+        }
+    }
+
+    public static String formatCents(long cents) {
+        return String.format("%d.%02d", cents / 100, cents % 100);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(status.ordinal() | (replayed ? REPLAYED : 0));
+        out.writeByte(operation == null ? NO_OPERATION : operation.ordinal());
+        out.writeLong(accountId);
+        out.writeLong(amount);
+        out.writeLong(balance);
+        out.writeLong(version);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int flags = in.readUnsignedByte();
+        status = STATUSES[flags & ~REPLAYED];
+        replayed = (flags & REPLAYED) != 0;
+        byte type = in.readByte();
+        operation = type == NO_OPERATION ? null : OPERATIONS[type];
+        accountId = in.readLong();
+        amount = in.readLong();
+        balance = in.readLong();
+        version = in.readLong();
+    }
+
+    @Override
+    public String toString() {
+        return getMessage();
+    }
+}
@@ -0,0 +1,25 @@
+package com.pucrs.interfaces;
+
+/**
+ * Defaults of the client's timeout and retry policy. The server relies on
+ * them too: it must keep a reply in its request log for as long as a client
+ * may still retry the same request id, see {@link #window()}.
+ */
+public final class RetryDefaults {
+
+    public static final int MAX_ATTEMPTS = 5;
+    public static final long MAX_DELAY = 8000;
+    public static final int TIMEOUT = 6000;
+
+    private RetryDefaults() {
+    }
+
+    /**
+     * The longest a client retries one request id with these defaults, in
+     * milliseconds: every attempt times out and every wait between attempts is
+     * the longest backoff.
+     */
+    public static long window() {
+        return MAX_ATTEMPTS * (long) TIMEOUT + (MAX_ATTEMPTS - 1) * MAX_DELAY;
+    }
+}
@@ -0,0 +1,137 @@
+package com.pucrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.jupiter.api.Test;
+
+class FlatCombinerTest {
+
+    private static final int THREADS = 8;
+    private static final int STEPS = 2000;
+    private static final long ACCOUNT = 42;
+
+    private final AccountLocks locks = new AccountLocks(4);
+    private final FlatCombiner combiner = new FlatCombiner(locks);
+
+    // Only touched under the account's stripe lock.
+    private long counter;
+
+    @Test
+    void resultsGoBackToTheirOwners() throws Exception {
+        ReentrantLock stripe = locks.lockFor(ACCOUNT);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long owner = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    ready.countDown();
+                    ready.await();
+                    for (long i = 0; i < STEPS; i++) {
+                        long mine = owner * STEPS + i;
+                        long[] result = combiner.run(ACCOUNT, () -> {
+                            assertTrue(stripe.isHeldByCurrentThread());
+                            return new long[] { mine, ++counter };
+                        });
+                        assertEquals(mine, result[0]);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(List.of(), List.copyOf(failures));
+        assertEquals((long) THREADS * STEPS, counter);
+    }
+
+    @Test
+    void requestsQueuedBehindAHeldLockAreCombined() throws Exception {
+        ReentrantLock stripe = locks.lockFor(ACCOUNT);
+        AssertionError error = new AssertionError("error");
+        List<Thread> threads = new ArrayList<>();
+        Object[] results = new Object[THREADS];
+        stripe.lock();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                int owner = t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        results[owner] = combiner.run(ACCOUNT, () -> {
+                            if (owner == 3) {
+                                throw error;
+                            }
+                            return owner + 100L;
+                        });
+                    } catch (Throwable e) {
+                        results[owner] = e;
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            // Every request queues while a batch or transfer holds the stripe.
+            while (!allWaiting(threads)) {
+                Thread.sleep(1);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // One thread ran them all, and only the owner of the failing step saw its error.
+        assertTrue(combiner.toString().contains("requests=" + THREADS), combiner.toString());
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(t == 3 ? error : t + 100L, results[t]);
+        }
+    }
+
+    @Test
+    void failuresGoBackToTheirOwners() throws Exception {
+        RemoteException remote = new RemoteException("remote");
+        IllegalStateException runtime = new IllegalStateException("runtime");
+        AssertionError error = new AssertionError("error");
+
+        assertSame(remote, assertThrows(RemoteException.class, () -> combiner.run(ACCOUNT, () -> {
+            throw remote;
+        })));
+        assertSame(runtime, assertThrows(IllegalStateException.class, () -> combiner.run(ACCOUNT, () -> {
+            throw runtime;
+        })));
+        assertSame(error, assertThrows(AssertionError.class, () -> combiner.run(ACCOUNT, () -> {
+            throw error;
+        })));
+
+        assertEquals("ok", combiner.run(ACCOUNT, () -> "ok"));
+        assertFalse(locks.lockFor(ACCOUNT).isLocked());
+    }
+
+    private static boolean allWaiting(List<Thread> threads) {
+        for (Thread thread : threads) {
+            Thread.State state = thread.getState();
+            if (state != Thread.State.WAITING && state != Thread.State.TIMED_WAITING) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+package com.pucrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class IdempotencyCacheTest {
+
+    private static final long TTL = 10_000;
+
+    @Test
+    void expiresEntriesLoadedOutOfOrder() throws Exception {
+        IdempotencyCache<String> cache = new IdempotencyCache<>(1 << 12, TTL);
+        long now = System.currentTimeMillis();
+        // Fresh entries first, then ones about to expire, as a snapshot
+        // written in hash order would load them.
+        for (long requestId = 1; requestId <= 1000; requestId++) {
+            cache.put(requestId, "fresh", now);
+        }
+        for (long requestId = 1001; requestId <= 2000; requestId++) {
+            cache.put(requestId, "old", now - TTL + 20);
+        }
+        Thread.sleep(50);
+
+        cache.evictExpired();
+
+        assertEquals(1000, cache.size());
+        assertEquals(1000, cache.expired());
+        for (long requestId = 1; requestId <= 1000; requestId++) {
+            assertEquals("fresh", cache.peek(requestId));
+        }
+        for (long requestId = 1001; requestId <= 2000; requestId++) {
+            assertNull(cache.peek(requestId));
+        }
+    }
+
+    @Test
+    void dropsOldestWhenFull() {
+        IdempotencyCache<String> cache = new IdempotencyCache<>(64 * 8, 6 * TTL);
+        long now = System.currentTimeMillis();
+        for (long requestId = 1; requestId <= 10_000; requestId++) {
+            cache.put(requestId, "reply", now - 10_000 + requestId);
+        }
+
+        assertEquals(cache.capacity(), cache.size());
+        assertEquals(10_000 - cache.capacity(), cache.overflowed());
+        assertNull(cache.peek(1));
+        assertNotNull(cache.peek(10_000));
+        // Each segment keeps its eight newest of about 150 entries.
+        cache.forEach((requestId, reply, storedAt) -> assertTrue(requestId > 8000, "kept " + requestId));
+    }
+
+    @Test
+    void removalKeepsProbeChains() throws Exception {
+        // Sixteen entries per segment in a table of 32 slots, so probe chains
+        // form, and expiring every other entry shifts the rest back.
+        IdempotencyCache<Long> cache = new IdempotencyCache<>(64 * 16, TTL);
+        long now = System.currentTimeMillis();
+        for (long requestId = 1; requestId <= 64 * 16; requestId++) {
+            cache.put(requestId, requestId, requestId % 2 == 0 ? now - TTL + 20 : now);
+        }
+        Set<Long> kept = new HashSet<>();
+        cache.forEach((requestId, reply, storedAt) -> {
+            if (requestId % 2 != 0) {
+                kept.add(requestId);
+            }
+        });
+        Thread.sleep(50);
+
+        cache.evictExpired();
+
+        assertEquals(kept.size(), cache.size());
+        for (long requestId = 1; requestId <= 64 * 16; requestId++) {
+            if (kept.contains(requestId)) {
+                assertEquals(requestId, cache.peek(requestId));
+            } else {
+                assertNull(cache.peek(requestId), "request " + requestId);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.pucrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+
+    // Frame header plus the payload of a non-transfer record.
+    private static final int FRAME_BYTES = 8 + 42;
+    private static final byte OK = 0;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysEveryRecordInOrder() throws Exception {
+        writeDeposits(10);
+
+        List<long[]> records = replay();
+
+        assertEquals(10, records.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, records.get(i)[0]);
+            assertEquals((i + 1) * 100, records.get(i)[1]);
+        }
+    }
+
+    @Test
+    void dropsTornTailAndAppendsAfterLastGoodRecord() throws Exception {
+        writeDeposits(10);
+        Path segment = Journal.segmentFile(dir, 0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // A crash in the middle of writing the last frame.
+            channel.truncate(channel.size() - 5);
+        }
+
+        List<long[]> records = replay();
+
+        assertEquals(9, records.size());
+        assertEquals(900, records.get(8)[1]);
+        assertEquals(9L * FRAME_BYTES, Files.size(segment));
+
+        try (Journal journal = new Journal(dir, false)) {
+            journal.awaitDurable(journal.append(Journal.DEPOSIT, 0, 42, 1, 100, 1000, OK));
+        }
+        records = replay();
+        assertEquals(10, records.size());
+        assertEquals(42, records.get(9)[0]);
+        assertEquals(1000, records.get(9)[1]);
+    }
+
+    @Test
+    void stopsAtCorruptRecord() throws Exception {
+        writeDeposits(10);
+        Path segment = Journal.segmentFile(dir, 0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Flip a byte in the payload of the fifth record.
+            long position = 4L * FRAME_BYTES + 8 + 20;
+            ByteBuffer bytes = ByteBuffer.allocate(1);
+            channel.read(bytes, position);
+            bytes.put(0, (byte) (bytes.get(0) ^ 0xFF)).rewind();
+            channel.write(bytes, position);
+        }
+
+        List<long[]> records = replay();
+
+        assertEquals(4, records.size());
+        assertEquals(4L * FRAME_BYTES, Files.size(segment));
+    }
+
+    @Test
+    void replaysTransferAsOneRecord() throws Exception {
+        try (Journal journal = new Journal(dir, false)) {
+            journal.awaitDurable(journal.append(Journal.TRANSFER, 0, 7, 1, 250, 750, OK, 2, 1250));
+        }
+
+        List<long[]> transfers = new ArrayList<>();
+        Journal.replay(dir, 0, (type, timestamp, requestId, accountId, amount, balanceAfter, status, toAccountId,
+                toBalanceAfter) -> transfers.add(new long[] { type, accountId, balanceAfter, toAccountId,
+                        toBalanceAfter }));
+
+        assertEquals(1, transfers.size());
+        long[] transfer = transfers.get(0);
+        assertEquals(Journal.TRANSFER, transfer[0]);
+        assertEquals(1, transfer[1]);
+        assertEquals(750, transfer[2]);
+        assertEquals(2, transfer[3]);
+        assertEquals(1250, transfer[4]);
+    }
+
+    // Deposits of 100 cents into account 1, with request ids 1 to count.
+    private void writeDeposits(int count) throws IOException, InterruptedException {
+        try (Journal journal = new Journal(dir, false)) {
+            long seq = 0;
+            for (int i = 1; i <= count; i++) {
+                seq = journal.append(Journal.DEPOSIT, 0, i, 1, 100, i * 100L, OK);
+            }
+            journal.awaitDurable(seq);
+        }
+    }
+
+    // Request id and balance after of every record.
+    private List<long[]> replay() throws IOException {
+        List<long[]> records = new ArrayList<>();
+        Journal.replay(dir, 0, (type, timestamp, requestId, accountId, amount, balanceAfter, status, toAccountId,
+                toBalanceAfter) -> records.add(new long[] { requestId, balanceAfter }));
+        return records;
+    }
+}
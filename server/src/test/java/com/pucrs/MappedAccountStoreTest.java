@@ -0,0 +1,108 @@
+package com.pucrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedAccountStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void newFileIsNotClean() throws Exception {
+        try (MappedAccountStore store = new MappedAccountStore(dir.resolve("accounts.dat"), 16)) {
+            assertFalse(store.recoveredCleanly());
+        }
+    }
+
+    @Test
+    void cleanCloseKeepsAccounts() throws Exception {
+        Path file = dir.resolve("accounts.dat");
+        try (MappedAccountStore store = new MappedAccountStore(file, 16)) {
+            store.create(1, 100);
+            store.create(2, 0);
+            store.deposit(2, 250);
+            store.remove(1);
+        }
+
+        try (MappedAccountStore store = new MappedAccountStore(file, 16)) {
+            assertTrue(store.recoveredCleanly());
+            assertEquals(1, store.size());
+            assertFalse(store.contains(1));
+            assertEquals(250, store.get(2));
+        }
+    }
+
+    @Test
+    void storeLeftOpenIsNotClean() throws Exception {
+        Path file = dir.resolve("accounts.dat");
+        try (MappedAccountStore store = new MappedAccountStore(file, 16)) {
+            store.create(1, 100);
+        }
+
+        try (MappedAccountStore running = new MappedAccountStore(file, 16)) {
+            assertTrue(running.recoveredCleanly());
+            running.deposit(1, 50);
+            running.flush();
+
+            // Opened again before the first one closed, as after a crash: the
+            // flag was cleared when the running store opened the file.
+            try (MappedAccountStore crashed = new MappedAccountStore(file, 16)) {
+                assertFalse(crashed.recoveredCleanly());
+                assertEquals(150, crashed.get(1));
+            }
+        }
+    }
+
+    @Test
+    void growingKeepsAccounts() throws Exception {
+        Path file = dir.resolve("accounts.dat");
+        try (MappedAccountStore store = new MappedAccountStore(file, 4)) {
+            for (long accountId = 1; accountId <= 1000; accountId++) {
+                assertTrue(store.create(accountId, accountId));
+            }
+        }
+
+        try (MappedAccountStore store = new MappedAccountStore(file, 4)) {
+            assertTrue(store.recoveredCleanly());
+            assertEquals(1000, store.size());
+            for (long accountId = 1; accountId <= 1000; accountId++) {
+                assertEquals(accountId, store.get(accountId));
+            }
+        }
+    }
+
+    @Test
+    void walkDoesNotHoldOffCreates() throws Exception {
+        try (MappedAccountStore store = new MappedAccountStore(dir.resolve("accounts.dat"), 16)) {
+            for (long accountId = 1; accountId <= 10_000; accountId++) {
+                store.create(accountId, accountId);
+            }
+
+            // Creating from the consumer would deadlock if the walk held the
+            // lock, and grows the table under the walk.
+            Set<Long> seen = new HashSet<>();
+            long[] next = { 1_000_000 };
+            store.forEach((accountId, balance) -> {
+                assertEquals(accountId < 1_000_000 ? accountId : 0, balance);
+                seen.add(accountId);
+                if (next[0] < 1_020_000) {
+                    store.create(next[0]++, 0);
+                }
+            });
+
+            assertEquals(1_020_000, next[0]);
+            for (long accountId = 1; accountId <= 10_000; accountId++) {
+                assertTrue(seen.contains(accountId), "account " + accountId);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.pucrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.pucrs.interfaces.OperationResult;
+
+/**
+ * Runs a primary and a backup in one process over a local socket.
+ */
+class ReplicationTest {
+
+    private static final long EPOCH = 3;
+    private static final int ACCOUNTS = 32;
+    private static final long TAKEOVER_MILLIS = 300;
+    private static final byte OK = (byte) OperationResult.Status.OK.ordinal();
+
+    @TempDir
+    Path dir;
+
+    private final AsyncLogger log = new AsyncLogger(64, null, AsyncLogger.Level.ERROR, null, AsyncLogger.Level.ERROR);
+    private final AccountStore balance = new HeapAccountStore();
+    private final IdempotencyCache<OperationResult> requestLog = new IdempotencyCache<>(1 << 12, 60_000);
+    private final Backup backup = new Backup();
+    private long requestIds;
+
+    private Journal journal;
+    private ReplicationPrimary primary;
+    private ReplicationBackup follower;
+
+    @BeforeEach
+    void start() throws Exception {
+        journal = new Journal(dir, false);
+        for (long accountId = 1; accountId <= ACCOUNTS; accountId++) {
+            balance.create(accountId, 0);
+            journal.append(Journal.CREATE_ACCOUNT, 0, ++requestIds, accountId, 0, 0, OK);
+        }
+
+        int port = freePort();
+        primary = new ReplicationPrimary(port, journal, EPOCH,
+                (out, segment) -> Snapshots.write(out, segment, balance, requestLog), log, 1 << 20);
+        primary.start();
+        follower = new ReplicationBackup("localhost", port, backup, log, TAKEOVER_MILLIS, 0);
+        follower.start();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        primary.close();
+        journal.close();
+        // Let the backup take over so its thread ends.
+        backup.takenOver.await(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void streamsJournalAfterSnapshot() throws Exception {
+        awaitTrue(() -> follower.appliedVersion() >= 0, "snapshot");
+        assertEquals(1, backup.loads.get());
+        assertEquals(ACCOUNTS, backup.balance.size());
+
+        for (int i = 0; i < 1000; i++) {
+            deposit(1 + i % ACCOUNTS, 10);
+        }
+        long lastSeq = journal.lastSequence();
+        journal.awaitDurable(lastSeq);
+
+        awaitTrue(() -> follower.appliedVersion() == ReplicationPrimary.version(EPOCH, lastSeq), "journal");
+        assertTrue(follower.isCurrent(TAKEOVER_MILLIS));
+        assertSameState();
+    }
+
+    @Test
+    void resyncSendsNewSnapshot() throws Exception {
+        awaitTrue(() -> follower.appliedVersion() >= 0, "snapshot");
+
+        // A change that never went through the journal only reaches the backup
+        // with the next snapshot.
+        balance.put(1, 12345);
+        primary.resync();
+
+        awaitTrue(() -> backup.loads.get() == 2 && follower.appliedVersion() >= 0, "second snapshot");
+        deposit(2, 10);
+        long lastSeq = journal.lastSequence();
+        journal.awaitDurable(lastSeq);
+        awaitTrue(() -> follower.appliedVersion() == ReplicationPrimary.version(EPOCH, lastSeq), "journal");
+        assertSameState();
+    }
+
+    @Test
+    void takesOverWhenPrimaryIsGone() throws Exception {
+        deposit(1, 10);
+        awaitTrue(() -> follower.appliedVersion() >= 0, "snapshot");
+        assertEquals(-1, backup.primaryEpoch);
+
+        primary.close();
+
+        assertTrue(backup.takenOver.await(10, TimeUnit.SECONDS), "no takeover");
+        assertEquals(EPOCH, backup.primaryEpoch);
+        assertEquals(10, backup.balance.get(1));
+    }
+
+    // Applies and journals in one step, as the server does under the account's lock.
+    private synchronized void deposit(long accountId, long amount) {
+        long after = balance.deposit(accountId, amount);
+        journal.append(Journal.DEPOSIT, 0, ++requestIds, accountId, amount, after, OK);
+    }
+
+    private void assertSameState() {
+        assertEquals(balance.size(), backup.balance.size());
+        for (long accountId = 1; accountId <= ACCOUNTS; accountId++) {
+            assertEquals(balance.get(accountId), backup.balance.get(accountId), "account " + accountId);
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("timed out waiting for " + what);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * State of the backup server, written only by the replication thread.
+     */
+    private static final class Backup implements ReplicationBackup.Applier {
+
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch takenOver = new CountDownLatch(1);
+        volatile AccountStore balance = new HeapAccountStore();
+        volatile long primaryEpoch = -1;
+
+        @Override
+        public void load(InputStream in) throws IOException {
+            AccountStore loaded = new HeapAccountStore();
+            Snapshots.read(in, loaded, new IdempotencyCache<>(1 << 12, 60_000));
+            balance = loaded;
+            loads.incrementAndGet();
+        }
+
+        @Override
+        public void apply(ByteBuffer frames) throws IOException {
+            AccountStore target = balance;
+            Journal.replay(frames, (type, timestamp, requestId, accountId, amount, balanceAfter, status,
+                    toAccountId, toBalanceAfter) -> target.put(accountId, balanceAfter));
+        }
+
+        @Override
+        public boolean takeOver(long primaryEpoch) {
+            this.primaryEpoch = primaryEpoch;
+            takenOver.countDown();
+            return true;
+        }
+    }
+}
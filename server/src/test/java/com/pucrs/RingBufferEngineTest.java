@@ -0,0 +1,95 @@
+package com.pucrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class RingBufferEngineTest {
+
+    private static final int PRODUCERS = 8;
+    private static final int STEPS = 2000;
+
+    private final AsyncLogger log = new AsyncLogger(64, null, AsyncLogger.Level.ERROR, null, AsyncLogger.Level.ERROR);
+    private final AtomicLong durable = new AtomicLong();
+
+    // Only ever touched by the business thread.
+    private long applied;
+
+    @Test
+    void resultsGoBackToTheirOwners() throws Exception {
+        // Four slots for eight producers, so the ring fills and slots are reused.
+        RingBufferEngine engine = new RingBufferEngine(4, seq -> durable.accumulateAndGet(seq, Math::max), log);
+        engine.start();
+
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            long owner = p;
+            Thread producer = new Thread(() -> {
+                try {
+                    for (long i = 0; i < STEPS; i++) {
+                        long mine = owner * STEPS + i;
+                        long[] result = engine.execute(() -> new long[] { mine, ++applied }, r -> r[1]);
+                        assertEquals(mine, result[0]);
+                        // The reply waits until its record is durable.
+                        assertTrue(durable.get() >= result[1]);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(List.of(), List.copyOf(failures));
+        assertEquals((long) PRODUCERS * STEPS, engine.execute(() -> applied, a -> 0));
+    }
+
+    @Test
+    void failuresGoBackToTheirOwners() throws Exception {
+        RingBufferEngine engine = new RingBufferEngine(4, seq -> { }, log);
+        engine.start();
+
+        RemoteException remote = new RemoteException("remote");
+        IllegalStateException runtime = new IllegalStateException("runtime");
+        AssertionError error = new AssertionError("error");
+
+        assertSame(remote, assertThrows(RemoteException.class, () -> engine.execute(() -> {
+            throw remote;
+        }, r -> 0)));
+        assertSame(runtime, assertThrows(IllegalStateException.class, () -> engine.execute(() -> {
+            throw runtime;
+        }, r -> 0)));
+        assertSame(error, assertThrows(AssertionError.class, () -> engine.execute(() -> {
+            throw error;
+        }, r -> 0)));
+
+        // The business thread survived all three.
+        assertEquals("ok", engine.execute(() -> "ok", r -> 0));
+    }
+
+    @Test
+    void journalFailureFailsTheBatch() throws Exception {
+        RingBufferEngine engine = new RingBufferEngine(4, seq -> {
+            throw new IOException("disk full");
+        }, log);
+        engine.start();
+
+        RemoteException failure = assertThrows(RemoteException.class, () -> engine.execute(() -> "applied", r -> 1));
+        assertEquals("disk full", failure.getCause().getMessage());
+    }
+}
@@ -0,0 +1,115 @@
+package com.pucrs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.pucrs.interfaces.OperationResult;
+import com.pucrs.interfaces.OperationType;
+
+/**
+ * Takes snapshots while deposits keep running, the way the server
+ * checkpoints, and checks that loading the latest one and replaying the
+ * journal after it ends in the live state.
+ */
+class SnapshotRecoveryTest {
+
+    private static final int ACCOUNTS = 64;
+    private static final int WRITERS = 4;
+    private static final byte OK = (byte) OperationResult.Status.OK.ordinal();
+    // Request id of a reply stored right before the last snapshot.
+    private static final long MARKER = Long.MAX_VALUE;
+
+    @TempDir
+    Path dir;
+
+    private final AccountStore balance = new HeapAccountStore();
+    private final IdempotencyCache<OperationResult> requestLog = new IdempotencyCache<>(1 << 20, 60_000);
+    private final AccountLocks locks = new AccountLocks(16);
+    private final AtomicLong requestIds = new AtomicLong();
+
+    @Test
+    void replayOverFuzzySnapshotConverges() throws Exception {
+        long snapshotSegment = 0;
+        try (Journal journal = new Journal(dir, false)) {
+            for (long accountId = 1; accountId <= ACCOUNTS; accountId++) {
+                balance.create(accountId, 0);
+                journal.append(Journal.CREATE_ACCOUNT, 0, requestIds.incrementAndGet(), accountId, 0, 0, OK);
+            }
+
+            AtomicBoolean running = new AtomicBoolean(true);
+            List<Thread> writers = new ArrayList<>();
+            for (int i = 0; i < WRITERS; i++) {
+                Thread writer = new Thread(() -> {
+                    while (running.get()) {
+                        deposit(journal, ThreadLocalRandom.current().nextLong(1, ACCOUNTS + 1));
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+            }
+
+            for (int i = 0; i < 3; i++) {
+                Thread.sleep(50);
+                if (i == 2) {
+                    requestLog.put(MARKER, new OperationResult(OperationResult.Status.OK,
+                            OperationType.GET_BALANCE, 1, 0, 0));
+                }
+                long segment = journal.roll();
+                Snapshots.write(dir, segment, balance, requestLog);
+                journal.deleteSegmentsBefore(segment);
+                Snapshots.deleteBefore(dir, segment);
+                snapshotSegment = segment;
+            }
+            Thread.sleep(50);
+
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            journal.awaitDurable(journal.lastSequence());
+        }
+
+        AccountStore recovered = new HeapAccountStore();
+        IdempotencyCache<OperationResult> recoveredLog = new IdempotencyCache<>(1 << 20, 60_000);
+        long fromSegment = Snapshots.loadLatest(dir, recovered, recoveredLog);
+        long records = Journal.replay(dir, fromSegment, (type, timestamp, requestId, accountId, amount,
+                balanceAfter, status, toAccountId, toBalanceAfter) -> recovered.put(accountId, balanceAfter));
+
+        assertEquals(snapshotSegment, fromSegment);
+        assertTrue(records > 0, "no deposits after the last snapshot");
+        assertEquals(ACCOUNTS, recovered.size());
+        for (long accountId = 1; accountId <= ACCOUNTS; accountId++) {
+            assertEquals(balance.get(accountId), recovered.get(accountId), "account " + accountId);
+        }
+        // Replies stored before the snapshot come back with it.
+        assertNotNull(recoveredLog.peek(MARKER));
+    }
+
+    // Applies and journals under the account's lock, as the server does, so
+    // the journal has the same per-account order as memory.
+    private void deposit(Journal journal, long accountId) {
+        long requestId = requestIds.incrementAndGet();
+        ReentrantLock lock = locks.lockFor(accountId);
+        lock.lock();
+        try {
+            long after = balance.deposit(accountId, 100);
+            journal.append(Journal.DEPOSIT, 0, requestId, accountId, 100, after, OK);
+            requestLog.put(requestId, new OperationResult(OperationResult.Status.OK, OperationType.DEPOSIT,
+                    accountId, 100, after));
+        } finally {
+            lock.unlock();
+        }
+    }
+}
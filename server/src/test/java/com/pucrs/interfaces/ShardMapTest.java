@@ -0,0 +1,54 @@
+package com.pucrs.interfaces;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ShardMapTest {
+
+    @Test
+    void parsesHostsAndPorts() {
+        ShardMap map = ShardMap.parse(" host1:8080, ,10.0.0.2:9090,");
+
+        assertEquals(2, map.size());
+        assertEquals("host1", map.host(0));
+        assertEquals(8080, map.port(0));
+        assertEquals("10.0.0.2", map.host(1));
+        assertEquals(9090, map.port(1));
+    }
+
+    @Test
+    void rejectsBadSpecs() {
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.parse(" , "));
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.parse("host1"));
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.parse(":8080"));
+        assertThrows(NumberFormatException.class, () -> ShardMap.parse("host1:http"));
+    }
+
+    @Test
+    void singleShardOwnsEveryAccount() {
+        ShardMap map = ShardMap.single("localhost", 8080);
+
+        for (long accountId : new long[] { 0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE }) {
+            assertEquals(0, map.shardOf(accountId));
+        }
+    }
+
+    @Test
+    void spreadsConsecutiveAccountsOverEveryShard() {
+        ShardMap map = ShardMap.parse("a:1,b:2,c:3,d:4");
+        int[] owned = new int[map.size()];
+
+        for (long accountId = 0; accountId < 100_000; accountId++) {
+            int shard = map.shardOf(accountId);
+            assertEquals(shard, map.shardOf(accountId));
+            owned[shard]++;
+        }
+
+        for (int shard = 0; shard < owned.length; shard++) {
+            assertTrue(owned[shard] > 23_000 && owned[shard] < 27_000, "shard " + shard + ": " + owned[shard]);
+        }
+    }
+}